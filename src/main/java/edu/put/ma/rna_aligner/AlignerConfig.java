@@ -27,6 +27,9 @@ public class AlignerConfig {
   // Batch = 1 will store all possible dual core in the memory. It can be very RAM demanding for
   // larger structures.
   public int dualCoreBatches = 2;
+  // Distributed search. Only reference pairs with id % shardCount == shardIndex are used as cores.
+  public int shardIndex = 0;
+  public int shardCount = 1;
 
   // tripleCoreBestPercentage how many (percentage wise) best tripleCores should be calculated in
   // the first batch (out of 2). BatchMaximum hard maximum limit of triple cores for candidate to
@@ -48,6 +51,11 @@ public class AlignerConfig {
   public int crossChance = 25;
   public int mutationChance = 74;
   public int newSpecimenChance = 1;
+  // Island model. Every 'migrationInterval' generations each thread sends its 'migrationSize' best
+  // specimens to other threads selected by 'migrationTopology'. Interval 0 disables migration.
+  public int migrationInterval = 25;
+  public int migrationSize = 2;
+  public MigrationChannel.Topology migrationTopology = MigrationChannel.Topology.RING;
   // Multiple mutation chances.
   public int singleMutation = 65;
   public int doubleMutation = 15;
@@ -57,4 +65,38 @@ public class AlignerConfig {
   AlignerConfig() {
     super();
   }
+
+  AlignerConfig(final AlignerConfig rhs) {
+    super();
+    rmsdLimit = rhs.rmsdLimit;
+    threads = rhs.threads;
+    returnTime = rhs.returnTime;
+    waitBufferPercentage = rhs.waitBufferPercentage;
+    waitBufferFlat = rhs.waitBufferFlat;
+    imprResultPercentage = rhs.imprResultPercentage;
+    imprResultFlat = rhs.imprResultFlat;
+    imprRmsdPercentage = rhs.imprRmsdPercentage;
+    imprRmsdFlat = rhs.imprRmsdFlat;
+    pairRmsdLimit = rhs.pairRmsdLimit;
+    tripleRmsdLimit = rhs.tripleRmsdLimit;
+    dualCoreBatches = rhs.dualCoreBatches;
+    shardIndex = rhs.shardIndex;
+    shardCount = rhs.shardCount;
+    tripleCoreBatchMinimum = rhs.tripleCoreBatchMinimum;
+    tripleCoreBestPercentage = rhs.tripleCoreBestPercentage;
+    geometricPopulation = rhs.geometricPopulation;
+    resetThreadTime = rhs.resetThreadTime;
+    bestPercentage = rhs.bestPercentage;
+    populationSize = rhs.populationSize;
+    crossChance = rhs.crossChance;
+    mutationChance = rhs.mutationChance;
+    newSpecimenChance = rhs.newSpecimenChance;
+    migrationInterval = rhs.migrationInterval;
+    migrationSize = rhs.migrationSize;
+    migrationTopology = rhs.migrationTopology;
+    singleMutation = rhs.singleMutation;
+    doubleMutation = rhs.doubleMutation;
+    tripleMutation = rhs.tripleMutation;
+    quadrupleMutation = rhs.quadrupleMutation;
+  }
 }
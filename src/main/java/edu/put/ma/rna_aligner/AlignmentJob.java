@@ -0,0 +1,294 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import org.apache.commons.lang3.StringUtils;
+
+// Alignment of two structure files with all options needed to run it, locally or on a worker.
+// Jobs and results are sent between Coordinator and WorkerServer as single lines:
+//   JOB <tab> key=value <tab> key=value ...
+//   RESULT <tab> aligned <tab> rmsd <tab> processing time <tab> comma separated target mapping
+//   ERROR <tab> message
+// Values are URL encoded. Structures are read from the paths by both sides, so they have to see
+// the same files (the same host or a shared file system).
+public class AlignmentJob {
+  public final AlignerConfig config;
+  public final String reference;
+  public final String model;
+  public final String inputType;
+  public final boolean allowIncomplete;
+  public final String method;
+  public final boolean isSequenceDependent;
+  public final boolean respectOrder;
+
+  AlignmentJob(final AlignerConfig _config, final String _reference, final String _model,
+      final String _inputType, final boolean _allowIncomplete, final String _method,
+      final boolean _isSequenceDependent, final boolean _respectOrder) {
+    super();
+    config = _config;
+    reference = _reference;
+    model = _model;
+    // Parser compares the input type by reference.
+    inputType = _inputType.intern();
+    allowIncomplete = _allowIncomplete;
+    method = _method;
+    isSequenceDependent = _isSequenceDependent;
+    respectOrder = _respectOrder;
+  }
+
+  public final boolean isGeometric() {
+    return StringUtils.equalsIgnoreCase(method, "geometric");
+  }
+
+  // Reads both structures and aligns them. Pool can be null.
+  public final AlignerOutput calculate(final ForkJoinPool threadPool) {
+    return calculate(read(reference), read(model), threadPool);
+  }
+
+  // Coarse-grained structure read with the options of the job.
+  public final ArrayList<Nucleotide> read(final String path) {
+    final ArrayList<Nucleotide> structure =
+        new StructureParser().StructureToCoarseGrained(path, inputType, allowIncomplete);
+    if (structure.isEmpty()) {
+      throw new IllegalArgumentException("No nucleotides read from " + path);
+    }
+    return structure;
+  }
+
+  // Reads both structures through the cache and aligns them. Pool can be null.
+  public final AlignerOutput calculate(final StructureCache cache,
+      final ForkJoinPool threadPool) {
+    return calculate(cache.get(reference, inputType, allowIncomplete),
+        cache.get(model, inputType, allowIncomplete), threadPool);
+  }
+
+  // Aligns cached structures, the reference index and distance matrices are reused.
+  // Pool can be null.
+  public final AlignerOutput calculate(final StructureCache.Structure referenceStructure,
+      final StructureCache.Structure targetStructure, final ForkJoinPool threadPool) {
+    if (isGeometric()) {
+      GeometricAligner aligner = new GeometricAligner(config, referenceStructure.index(),
+          targetStructure.nucleotides, isSequenceDependent, config.rmsdLimit, respectOrder,
+          threadPool, targetStructure.distances());
+      return aligner.calculate();
+    }
+    GeneticAligner aligner = new GeneticAligner(config, referenceStructure.index(),
+        targetStructure.nucleotides, isSequenceDependent, config.rmsdLimit, respectOrder,
+        threadPool);
+    return aligner.calculate();
+  }
+
+  // Aligns a model against the shared reference index. Pool can be null.
+  public final AlignerOutput calculate(final ReferenceIndex referenceIndex,
+      final ArrayList<Nucleotide> targetStructure, final ForkJoinPool threadPool) {
+    if (isGeometric()) {
+      GeometricAligner aligner = new GeometricAligner(config, referenceIndex, targetStructure,
+          isSequenceDependent, config.rmsdLimit, respectOrder, threadPool, null);
+      return aligner.calculate();
+    }
+    GeneticAligner aligner = new GeneticAligner(config, referenceIndex, targetStructure,
+        isSequenceDependent, config.rmsdLimit, respectOrder, threadPool);
+    return aligner.calculate();
+  }
+
+  // Aligns already parsed structures. Pool can be null.
+  public final AlignerOutput calculate(final ArrayList<Nucleotide> referenceStructure,
+      final ArrayList<Nucleotide> targetStructure, final ForkJoinPool threadPool) {
+    if (isGeometric()) {
+      GeometricAligner aligner = new GeometricAligner(config, referenceStructure, targetStructure,
+          isSequenceDependent, config.rmsdLimit, respectOrder, threadPool);
+      return aligner.calculate();
+    }
+    GeneticAligner aligner = new GeneticAligner(config, referenceStructure, targetStructure,
+        isSequenceDependent, config.rmsdLimit, respectOrder, threadPool);
+    return aligner.calculate();
+  }
+
+  public final String toLine() {
+    return toLine(config.shardIndex, config.shardCount);
+  }
+
+  // Job line with the given GEOS shard.
+  public final String toLine(int shardIndex, int shardCount) {
+    final StringBuilder line = new StringBuilder("JOB");
+    append(line, "reference", reference);
+    append(line, "model", model);
+    append(line, "inputType", inputType);
+    append(line, "allowIncomplete", String.valueOf(allowIncomplete));
+    append(line, "method", method);
+    append(line, "sequenceDependent", String.valueOf(isSequenceDependent));
+    append(line, "respectOrder", String.valueOf(respectOrder));
+    append(line, "rmsdLimit", String.valueOf(config.rmsdLimit));
+    append(line, "returnTime", String.valueOf(config.returnTime));
+    append(line, "pairRmsdLimit", String.valueOf(config.pairRmsdLimit));
+    append(line, "tripleRmsdLimit", String.valueOf(config.tripleRmsdLimit));
+    append(line, "geometricPopulation", String.valueOf(config.geometricPopulation));
+    append(line, "populationSize", String.valueOf(config.populationSize));
+    append(line, "shardIndex", String.valueOf(shardIndex));
+    append(line, "shardCount", String.valueOf(shardCount));
+    return line.toString();
+  }
+
+  // Options missing in the line are taken from 'config', threads are always the local ones.
+  public static AlignmentJob fromLine(final String line, final AlignerConfig config) {
+    final String[] fields = StringUtils.split(line, '\t');
+    if (fields == null || fields.length == 0 || !fields[0].equals("JOB")) {
+      throw new IllegalArgumentException("Not a job line: " + line);
+    }
+    String reference = null;
+    String model = null;
+    String inputType = "auto";
+    boolean allowIncomplete = false;
+    String method = "geometric";
+    boolean isSequenceDependent = false;
+    boolean respectOrder = false;
+    for (int i = 1; i < fields.length; i++) {
+      final int separator = fields[i].indexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Malformed job field: " + fields[i]);
+      }
+      final String key = fields[i].substring(0, separator);
+      final String value = decode(fields[i].substring(separator + 1));
+      switch (key) {
+        case "reference":
+          reference = value;
+          break;
+        case "model":
+          model = value;
+          break;
+        case "inputType":
+          inputType = value;
+          break;
+        case "allowIncomplete":
+          allowIncomplete = Boolean.parseBoolean(value);
+          break;
+        case "method":
+          method = value;
+          break;
+        case "sequenceDependent":
+          isSequenceDependent = Boolean.parseBoolean(value);
+          break;
+        case "respectOrder":
+          respectOrder = Boolean.parseBoolean(value);
+          break;
+        case "rmsdLimit":
+          config.rmsdLimit = Double.parseDouble(value);
+          break;
+        case "returnTime":
+          config.returnTime = Double.parseDouble(value);
+          break;
+        case "pairRmsdLimit":
+          config.pairRmsdLimit = Double.parseDouble(value);
+          break;
+        case "tripleRmsdLimit":
+          config.tripleRmsdLimit = Double.parseDouble(value);
+          break;
+        case "geometricPopulation":
+          config.geometricPopulation = Boolean.parseBoolean(value);
+          break;
+        case "populationSize":
+          config.populationSize = Integer.parseInt(value);
+          break;
+        case "shardIndex":
+          config.shardIndex = Integer.parseInt(value);
+          break;
+        case "shardCount":
+          config.shardCount = Integer.parseInt(value);
+          break;
+        default:
+          // Unknown options of newer coordinators are ignored.
+          break;
+      }
+    }
+    if (reference == null || model == null) {
+      throw new IllegalArgumentException("Job without reference or model structure");
+    }
+    if (config.shardCount < 1 || config.shardIndex < 0 || config.shardIndex >= config.shardCount) {
+      throw new IllegalArgumentException(
+          "Invalid shard " + config.shardIndex + " of " + config.shardCount);
+    }
+    return new AlignmentJob(config, reference, model, inputType, allowIncomplete, method,
+        isSequenceDependent, respectOrder);
+  }
+
+  public static String resultToLine(final AlignerOutput output) {
+    final StringBuilder line = new StringBuilder("RESULT");
+    line.append('\t').append(output.aligned);
+    line.append('\t').append(output.rmsd);
+    line.append('\t').append(output.processingTime);
+    line.append('\t');
+    for (int i = 0; i < output.targetMapping.size(); i++) {
+      if (i > 0) {
+        line.append(',');
+      }
+      line.append(output.targetMapping.get(i).intValue());
+    }
+    return line.toString();
+  }
+
+  public static String errorToLine(final String message) {
+    return "ERROR\t" + encode(String.valueOf(message));
+  }
+
+  // Superimposer is not sent, it is fitted again from the mapping of the given structures.
+  public static AlignerOutput resultFromLine(final String line,
+      final ArrayList<Nucleotide> referenceStructure,
+      final ArrayList<Nucleotide> targetStructure) {
+    final String[] fields = StringUtils.splitPreserveAllTokens(line, '\t');
+    if (fields != null && fields.length == 2 && fields[0].equals("ERROR")) {
+      throw new IllegalStateException(decode(fields[1]));
+    }
+    if (fields == null || fields.length != 5 || !fields[0].equals("RESULT")) {
+      throw new IllegalArgumentException("Not a result line: " + line);
+    }
+    final int aligned = Integer.parseInt(fields[1]);
+    final double rmsd = Double.parseDouble(fields[2]);
+    final long processingTime = Long.parseLong(fields[3]);
+    final ArrayList<Integer> referenceIndexes = new ArrayList<Integer>();
+    final ArrayList<Integer> targetMapping = new ArrayList<Integer>();
+    final ArrayList<Nucleotide> nucleotidesReference = new ArrayList<Nucleotide>();
+    final ArrayList<Nucleotide> nucleotidesTarget = new ArrayList<Nucleotide>();
+    final String[] mapping = StringUtils.split(fields[4], ',');
+    if (mapping.length != referenceStructure.size()) {
+      throw new IllegalArgumentException("Result mapping does not match the reference structure");
+    }
+    for (int i = 0; i < mapping.length; i++) {
+      final int target = Integer.parseInt(mapping[i]);
+      referenceIndexes.add(i);
+      targetMapping.add(target);
+      if (target > -1) {
+        nucleotidesReference.add(referenceStructure.get(i));
+        nucleotidesTarget.add(targetStructure.get(target));
+      }
+    }
+    final Superimposer superimposer =
+        Calculations.FitForRMSD(Nucleotide.NucleotidesToList(nucleotidesReference),
+            Nucleotide.NucleotidesToList(nucleotidesTarget));
+    return new AlignerOutput(aligned, referenceIndexes, targetMapping, superimposer,
+        processingTime, rmsd);
+  }
+
+  private static void append(final StringBuilder line, final String key, final String value) {
+    line.append('\t').append(key).append('=').append(encode(value));
+  }
+
+  private static String encode(final String value) {
+    try {
+      return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(final String value) {
+    try {
+      return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
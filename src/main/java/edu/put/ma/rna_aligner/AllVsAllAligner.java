@@ -0,0 +1,244 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// All-vs-all mode. Every structure is read once and every unordered pair is aligned once (the
+// earlier structure of the list is the reference), results are written as symmetric CSV
+// matrices:
+//   all-vs-all-aligned.csv  - number of aligned residues (structure size on the diagonal)
+//   all-vs-all-rmsd.csv     - RMSD of aligned residues
+//   all-vs-all-mappings.csv - reference residue, model residue of every pair (on request)
+// Cells of failed pairs are empty. Up to 'jobs' pairs are aligned at the same time, the largest
+// first, and all of them share one pool of config.threads threads.
+public class AllVsAllAligner {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AllVsAllAligner.class);
+
+  // Options of all pairs, reference and model are not used.
+  private final AlignmentJob defaults;
+  private final int jobs;
+  private final boolean writeMappings;
+
+  private static final class Pair {
+    final int reference;
+    final int model;
+    // Reference residues in order, -1 for not aligned ones. Kept only if mappings are written.
+    int[] mapping = null;
+    int aligned = -1;
+    double rmsd = -1;
+
+    Pair(int _reference, int _model) {
+      reference = _reference;
+      model = _model;
+    }
+  }
+
+  AllVsAllAligner(final AlignmentJob _defaults, int _jobs, boolean _writeMappings) {
+    super();
+    defaults = _defaults;
+    jobs = Math.max(1, _jobs);
+    writeMappings = _writeMappings;
+  }
+
+  // Null output means the directory of the structures. Returns the number of pairs that failed.
+  public int run(final String structures, final String output) throws IOException {
+    final ArrayList<String> paths = BatchAligner.listModels(structures);
+    if (paths.size() < 2) {
+      throw new IllegalArgumentException("At least 2 structures are required: " + structures);
+    }
+    final File outputDirectory =
+        App.resolveOutputDirectory((output != null) ? output : paths.get(0));
+    if (outputDirectory == null) {
+      throw new IllegalArgumentException("Output path directory is not a proper folder path: "
+          + output);
+    }
+    final StructureCache cache = new StructureCache(Long.MAX_VALUE);
+    final StructureCache.Structure[] parsed = new StructureCache.Structure[paths.size()];
+    final ArrayList<Pair> pairs = new ArrayList<Pair>(paths.size() * (paths.size() - 1) / 2);
+    for (int i = 0; i < paths.size(); i++) {
+      for (int j = i + 1; j < paths.size(); j++) {
+        pairs.add(new Pair(i, j));
+      }
+    }
+
+    final ForkJoinPool threadPool = new ForkJoinPool(defaults.config.threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, pairs.size()));
+    final AtomicInteger failed = new AtomicInteger(0);
+    try {
+      // Reading phase, every structure once.
+      for (int i = 0; i < paths.size(); i++) {
+        final int index = i;
+        executor.submit(() -> {
+          try {
+            parsed[index] =
+                cache.get(paths.get(index), defaults.inputType, defaults.allowIncomplete);
+          } catch (RuntimeException e) {
+            LOGGER.error("{}: {}", paths.get(index), e.getMessage());
+          }
+        });
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+      // Largest pairs first, so the last ones to finish are short.
+      Collections.sort(pairs, (lhs, rhs) -> Long.compare(cost(parsed, rhs), cost(parsed, lhs)));
+      final ExecutorService aligners =
+          Executors.newFixedThreadPool(Math.min(jobs, pairs.size()));
+      try {
+        for (final Pair pair : pairs) {
+          aligners.submit(() -> {
+            try {
+              align(pair, paths, parsed, threadPool);
+            } catch (RuntimeException e) {
+              LOGGER.error("{} vs {}: {}", paths.get(pair.reference), paths.get(pair.model),
+                  e.getMessage());
+              failed.incrementAndGet();
+            }
+          });
+        }
+        aligners.shutdown();
+        aligners.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } finally {
+        aligners.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+      threadPool.shutdown();
+    }
+
+    writeMatrices(paths, parsed, pairs, outputDirectory);
+    return failed.get();
+  }
+
+  // Pairs with unread structures are the cheapest, they fail at once.
+  private static long cost(final StructureCache.Structure[] parsed, final Pair pair) {
+    if (parsed[pair.reference] == null || parsed[pair.model] == null) {
+      return 0;
+    }
+    return (long) parsed[pair.reference].nucleotides.size() * parsed[pair.model].nucleotides.size();
+  }
+
+  private void align(final Pair pair, final ArrayList<String> paths,
+      final StructureCache.Structure[] parsed, final ForkJoinPool threadPool) {
+    if (parsed[pair.reference] == null || parsed[pair.model] == null) {
+      throw new IllegalArgumentException("Structure was not read");
+    }
+    final AlignmentJob job = new AlignmentJob(new AlignerConfig(defaults.config),
+        paths.get(pair.reference), paths.get(pair.model), defaults.inputType,
+        defaults.allowIncomplete, defaults.method, defaults.isSequenceDependent,
+        defaults.respectOrder);
+    LOGGER.info("Aligning {} and {}", job.reference, job.model);
+    final AlignerOutput output = job.calculate(parsed[pair.reference], parsed[pair.model],
+        threadPool);
+    if (output == null || output.aligned <= 0) {
+      pair.aligned = 0;
+      return;
+    }
+    pair.aligned = output.aligned;
+    pair.rmsd = output.rmsd;
+    if (writeMappings) {
+      final int[] mapping = new int[output.targetMapping.size()];
+      for (int i = 0; i < mapping.length; i++) {
+        mapping[i] = output.targetMapping.get(i).intValue();
+      }
+      pair.mapping = mapping;
+    }
+  }
+
+  private void writeMatrices(final ArrayList<String> paths,
+      final StructureCache.Structure[] parsed, final ArrayList<Pair> pairs,
+      final File outputDirectory) throws IOException {
+    final int size = paths.size();
+    final String[][] aligned = new String[size][size];
+    final String[][] rmsd = new String[size][size];
+    for (int i = 0; i < size; i++) {
+      if (parsed[i] != null) {
+        aligned[i][i] = String.valueOf(parsed[i].nucleotides.size());
+        rmsd[i][i] = format(0.0);
+      }
+    }
+    for (final Pair pair : pairs) {
+      if (pair.aligned >= 0) {
+        aligned[pair.reference][pair.model] = String.valueOf(pair.aligned);
+        aligned[pair.model][pair.reference] = aligned[pair.reference][pair.model];
+      }
+      if (pair.aligned > 0) {
+        rmsd[pair.reference][pair.model] = format(pair.rmsd);
+        rmsd[pair.model][pair.reference] = rmsd[pair.reference][pair.model];
+      }
+    }
+    final ArrayList<String> names = new ArrayList<String>();
+    for (final String path : paths) {
+      names.add(FilenameUtils.getName(path));
+    }
+    write(new File(outputDirectory, "all-vs-all-aligned.csv"), toCsv(names, aligned));
+    write(new File(outputDirectory, "all-vs-all-rmsd.csv"), toCsv(names, rmsd));
+
+    if (writeMappings) {
+      final StringBuilder mappings = new StringBuilder("reference,model,reference residue,"
+          + "model residue\n");
+      // Pairs in the order of the list, not of the calculation.
+      Collections.sort(pairs, (lhs, rhs) -> (lhs.reference != rhs.reference)
+          ? Integer.compare(lhs.reference, rhs.reference)
+          : Integer.compare(lhs.model, rhs.model));
+      for (final Pair pair : pairs) {
+        if (pair.mapping == null) {
+          continue;
+        }
+        final ArrayList<Nucleotide> reference = parsed[pair.reference].nucleotides;
+        final ArrayList<Nucleotide> model = parsed[pair.model].nucleotides;
+        for (int i = 0; i < pair.mapping.length; i++) {
+          if (pair.mapping[i] > -1) {
+            mappings.append(names.get(pair.reference)).append(',')
+                .append(names.get(pair.model)).append(',')
+                .append(reference.get(i).getDelimitedChainNumber(":")).append(',')
+                .append(model.get(pair.mapping[i]).getDelimitedChainNumber(":")).append('\n');
+          }
+        }
+      }
+      write(new File(outputDirectory, "all-vs-all-mappings.csv"), mappings.toString());
+    }
+  }
+
+  private static String toCsv(final ArrayList<String> names, final String[][] matrix) {
+    final StringBuilder csv = new StringBuilder();
+    for (final String name : names) {
+      csv.append(',').append(name);
+    }
+    csv.append('\n');
+    for (int i = 0; i < matrix.length; i++) {
+      csv.append(names.get(i));
+      for (int j = 0; j < matrix[i].length; j++) {
+        csv.append(',');
+        if (matrix[i][j] != null) {
+          csv.append(matrix[i][j]);
+        }
+      }
+      csv.append('\n');
+    }
+    return csv.toString();
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.US, "%.3f", value);
+  }
+
+  private static void write(final File file, final String data) throws IOException {
+    Files.write(file.toPath(), data.getBytes(StandardCharsets.UTF_8));
+  }
+}
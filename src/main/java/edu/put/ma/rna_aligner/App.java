@@ -62,6 +62,104 @@ public class App {
       System.exit(2);
     }
 
+    try {
+      Superimposer.setEngine(Superimposer.Engine.valueOf(
+          parsed_args.getOptionValue("superimposer", "qcp").toUpperCase()));
+    } catch (IllegalArgumentException e) {
+      LOGGER.error(e.getMessage());
+      System.exit(2);
+    }
+
+    if (parsed_args.hasOption("worker-port")) {
+      // Worker mode, jobs are received from the coordinator.
+      try {
+        new WorkerServer(config,
+            Coordinator.parseAddress(parsed_args.getOptionValue("worker-port"), null),
+            createCache(parsed_args))
+            .serve();
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.error(e.getMessage());
+        System.exit(2);
+      }
+      return;
+    }
+
+    if (parsed_args.hasOption("all-vs-all")) {
+      // All-vs-all mode, every pair of the structures is aligned in this process.
+      final AlignmentJob defaults = new AlignmentJob(config, null, null,
+          parsed_args.getOptionValue("pop-size", "auto"), parsed_args.hasOption("allow-incomplete"),
+          parsed_args.getOptionValue("method", "geometric"),
+          StringUtils.equalsIgnoreCase(parsed_args.getOptionValue("mode", "seq-indep"), "seq-dep"),
+          parsed_args.hasOption("respect-order"));
+      int failed = 0;
+      try {
+        failed = new AllVsAllAligner(defaults,
+            Integer.parseInt(parsed_args.getOptionValue("batch-jobs", "1")),
+            parsed_args.hasOption("pair-mappings"))
+            .run(parsed_args.getOptionValue("all-vs-all"), parsed_args.getOptionValue("output"));
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.error(e.getMessage());
+        System.exit(2);
+      }
+      if (failed > 0) {
+        LOGGER.error("Alignment of {} pairs failed", failed);
+        System.exit(4);
+      }
+      return;
+    }
+
+    if (parsed_args.hasOption("ensemble")) {
+      // Ensemble mode, the reference is aligned against every model of the file.
+      final AlignmentJob job = new AlignmentJob(config, parsed_args.getOptionValue("reference"),
+          parsed_args.getOptionValue("ensemble"), parsed_args.getOptionValue("pop-size", "auto"),
+          parsed_args.hasOption("allow-incomplete"),
+          parsed_args.getOptionValue("method", "geometric"),
+          StringUtils.equalsIgnoreCase(parsed_args.getOptionValue("mode", "seq-indep"), "seq-dep"),
+          parsed_args.hasOption("respect-order"));
+      int failed = 0;
+      try {
+        failed = new EnsembleAligner(job,
+            Integer.parseInt(parsed_args.getOptionValue("batch-jobs", "1")))
+            .run(parsed_args.getOptionValue("output"));
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.error(e.getMessage());
+        System.exit(2);
+      }
+      if (failed > 0) {
+        LOGGER.error("Alignment of {} models failed", failed);
+        System.exit(4);
+      }
+      return;
+    }
+
+    if (parsed_args.hasOption("batch") || parsed_args.hasOption("models")) {
+      // Batch mode, all pairs of the manifest (or the reference and all models) are aligned in
+      // this process.
+      final AlignmentJob defaults = new AlignmentJob(config,
+          parsed_args.getOptionValue("reference"), null,
+          parsed_args.getOptionValue("pop-size", "auto"), parsed_args.hasOption("allow-incomplete"),
+          parsed_args.getOptionValue("method", "geometric"),
+          StringUtils.equalsIgnoreCase(parsed_args.getOptionValue("mode", "seq-indep"), "seq-dep"),
+          parsed_args.hasOption("respect-order"));
+      int failed = 0;
+      try {
+        final BatchAligner aligner = new BatchAligner(defaults,
+            parsed_args.getOptionValue("output"),
+            Integer.parseInt(parsed_args.getOptionValue("batch-jobs", "1")),
+            createCache(parsed_args));
+        failed = parsed_args.hasOption("batch")
+            ? aligner.run(parsed_args.getOptionValue("batch"))
+            : aligner.runModels(parsed_args.getOptionValue("models"));
+      } catch (IOException | IllegalArgumentException e) {
+        LOGGER.error(e.getMessage());
+        System.exit(2);
+      }
+      if (failed > 0) {
+        LOGGER.error("Alignment of {} pairs failed", failed);
+        System.exit(4);
+      }
+      return;
+    }
 
     final File outputDirectory = getOutputDirectory(parsed_args);
 
@@ -80,25 +178,38 @@ public class App {
         StringUtils.equalsIgnoreCase(parsed_args.getOptionValue("mode", "seq-indep"), "seq-dep");
     final boolean respectOrder = parsed_args.hasOption("respect-order");
 
+    final AlignmentJob job = new AlignmentJob(config, parsed_args.getOptionValue("reference"),
+        getModelArg(parsed_args), parsed_args.getOptionValue("pop-size", "auto"),
+        parsed_args.hasOption("allow-incomplete"),
+        parsed_args.getOptionValue("method", "geometric"), isSequenceDependent, respectOrder);
     AlignerOutput output = null;
-    if (StringUtils.equalsIgnoreCase(
-            parsed_args.getOptionValue("method", "geometric"), "geometric")) {
-      GeometricAligner aligner = new GeometricAligner(
-          config, referenceStructure, targetStructure, isSequenceDependent, config.rmsdLimit, respectOrder);
-      output = aligner.calculate();
+    if (parsed_args.hasOption("workers")) {
+      // Coordinator mode, the alignment is calculated by the workers.
+      try {
+        output = new Coordinator(Coordinator.parseAddresses(parsed_args.getOptionValue("workers")))
+            .calculate(job, referenceStructure, targetStructure);
+      } catch (IllegalArgumentException e) {
+        LOGGER.error(e.getMessage());
+        System.exit(2);
+      }
     } else {
-      GeneticAligner aligner = new GeneticAligner(
-          config, referenceStructure, targetStructure, isSequenceDependent, config.rmsdLimit, respectOrder);
-      output = aligner.calculate();
+      output = job.calculate(referenceStructure, targetStructure, null);
     }
 
+    writeOutputs(job, outputDirectory, referenceStructure, targetStructure, output);
+  }
+
+  // Writes all result files of the job to the output directory.
+  static final void writeOutputs(final AlignmentJob job, final File outputDirectory,
+      final ArrayList<Nucleotide> referenceStructure, final ArrayList<Nucleotide> targetStructure,
+      final AlignerOutput output) {
     final String modelNameWithoutExtension =
-        FilenameUtils.removeExtension(FilenameUtils.getName(getModelArg(parsed_args)));
+        FilenameUtils.removeExtension(FilenameUtils.getName(job.model));
 
     final StringBuilder outputStringBuilder = new StringBuilder();
     outputStringBuilder.append(String.format("Alignment mode: %s\n",
-        ((isSequenceDependent) ? "sequence-dependent" : "sequence-independent")));
-    outputStringBuilder.append(String.format("RMSD threshold [Å]: %.2f\n", config.rmsdLimit));
+        ((job.isSequenceDependent) ? "sequence-dependent" : "sequence-independent")));
+    outputStringBuilder.append(String.format("RMSD threshold [Å]: %.2f\n", job.config.rmsdLimit));
     outputStringBuilder.append(
         String.format("Reference structure size [nts]: %d\n", referenceStructure.size()));
     outputStringBuilder.append(
@@ -153,8 +264,10 @@ public class App {
                          .toString(),
           getAlignment(referenceStructure, targetStructure, output));
 
-      ImmutableDefaultPdbModel model = getRotatedStructure(getModelArg(parsed_args),
-          parsed_args.getOptionValue("pop-size", "auto"), output.superimposer);
+      // All atoms of the model are needed here, so it is read again (with BioCommons) instead of
+      // being taken from the cache of coarse-grained structures.
+      ImmutableDefaultPdbModel model =
+          getRotatedStructure(job.model, job.inputType, output.superimposer);
       saveDataToFile(new StringBuilder(outputDirectory.getAbsolutePath())
                          .append(File.separator)
                          .append(modelNameWithoutExtension)
@@ -176,8 +289,24 @@ public class App {
   }
 
   private static final File getOutputDirectory(final CommandLine args) {
-    final File path =
-        Paths.get(args.getOptionValue("output", getModelArg(args))).toFile();
+    final File directory =
+        resolveOutputDirectory(args.getOptionValue("output", getModelArg(args)));
+    if (directory == null) {
+      LOGGER.error("Output path directory is not a proper folder path");
+      System.exit(3);
+    }
+    return directory;
+  }
+
+  // Cache of the worker and batch modes, its size is given in megabytes.
+  private static final StructureCache createCache(final CommandLine args) {
+    return new StructureCache(
+        Long.parseLong(args.getOptionValue("cache-size", "1024")) * 1024 * 1024);
+  }
+
+  // Output directory itself or the directory of the given (model) file, null if neither exists.
+  static final File resolveOutputDirectory(final String output) {
+    final File path = Paths.get(output).toFile();
 
     if (path.exists()) {
       if (path.isDirectory()) {
@@ -192,8 +321,6 @@ public class App {
       }
     }
 
-    LOGGER.error("Output path directory is not a proper folder path");
-    System.exit(3);
     return null;
   }
 
@@ -206,7 +333,6 @@ public class App {
                 "Reference structure in .pdb/.cif format. Can force format with --input-format")
             .hasArg()
             .withArgName("reference.pdb")
-            .isRequired()
             .create('r'));
 
     options.addOption(
@@ -250,6 +376,14 @@ public class App {
                           .withArgName("method")
                           .create());
 
+    options.addOption(OptionBuilder.withLongOpt("superimposer")
+                          .withDescription("(optional) Method used to find optimal superposition.\n"
+                              + "Available: qcp, svd\n"
+                              + "Default: qcp")
+                          .hasArg()
+                          .withArgName("engine")
+                          .create());
+
     options.addOption(
         OptionBuilder.withLongOpt("mode")
             .withDescription("(optional) Aligning mode used with each method. Can be either "
@@ -336,6 +470,88 @@ public class App {
             .create());
 
 
+    options.addOption(
+        OptionBuilder.withLongOpt("worker-port")
+            .withDescription("(optional) Run as a worker of the distributed mode. Listens on the "
+                + "given port (loopback unless the address is given) for jobs from the coordinator "
+                + "started with --workers. Reference and model are not used.\n")
+            .hasArg()
+            .withArgName("[address:]port")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("workers")
+            .withDescription("(optional) Run as a coordinator of the distributed mode. Splits the "
+                + "alignment between workers started with --worker-port and keeps the best "
+                + "result. Workers must be able to read the input files under the same paths.\n")
+            .hasArg()
+            .withArgName("host:port,...")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("batch")
+            .withDescription("(optional) Align all pairs listed in the manifest in a single run. "
+                + "Manifest is a TSV file with columns: reference, model and optional method, "
+                + "mode, rmsd, output. Missing columns take values of the other options.\n")
+            .hasArg()
+            .withArgName("manifest.tsv")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("models")
+            .withDescription("(optional) Align the reference against all models in the directory "
+                + "or matching the glob (e.g. 'models/*.pdb') in a single run. Reference is "
+                + "read and indexed once. Model is not used.\n")
+            .hasArg()
+            .withArgName("directory|glob")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("ensemble")
+            .withDescription("(optional) Align the reference against every model of the "
+                + "multi-model file (MODEL/ENDMDL or pdbx_PDB_model_num). The file is read model "
+                + "after model. Results are written to <ensemble>-ensemble.csv. Model is not "
+                + "used.\n")
+            .hasArg()
+            .withArgName("ensemble.pdb")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("all-vs-all")
+            .withDescription("(optional) Align every pair of the structures in the directory or "
+                + "matching the glob (e.g. 'models/*.pdb') once and write CSV matrices of aligned "
+                + "residues and RMSD to the output directory.\n"
+                + "Default output: directory of the structures")
+            .hasArg()
+            .withArgName("directory|glob")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("pair-mappings")
+            .withDescription("(optional) Also write residue mappings of all pairs in the "
+                + "all-vs-all mode.\n")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("batch-jobs")
+            .withDescription("(optional) Number of pairs aligned at the same time in the batch, "
+                + "models, ensemble and all-vs-all modes. All of them share the threads.\n"
+                + "Default: 1")
+            .hasArg()
+            .withType(Integer.class)
+            .withArgName("jobs")
+            .create());
+
+    options.addOption(
+        OptionBuilder.withLongOpt("cache-size")
+            .withDescription("(optional) Memory [MB] for parsed structures and their distances "
+                + "kept by the worker and batch modes. Files are read again when they change.\n"
+                + "Default: 1024")
+            .hasArg()
+            .withType(Integer.class)
+            .withArgName("megabytes")
+            .create());
+
     options.addOption(
         OptionBuilder.withLongOpt("allow-incomplete")
             .withDescription("(optional) Allow usage of incomplete atoms in coarse-grained "
@@ -356,7 +572,19 @@ public class App {
       System.exit(1);
     }
 
-    if (! cmd.hasOption("model") && ! cmd.hasOption("target")) {
+    if (cmd.hasOption("worker-port") || cmd.hasOption("batch") || cmd.hasOption("all-vs-all")) {
+      return cmd;
+    }
+
+    if (! cmd.hasOption("reference")) {
+      LOGGER.error("Reference structure is required");
+      formatter.printHelp(100,
+          "java -jar rna-hugs.jar -r <reference.pdb> -m <model.pdb> [OPTIONS]", "", options, "");
+      System.exit(1);
+    }
+
+    if (! cmd.hasOption("model") && ! cmd.hasOption("target") && ! cmd.hasOption("models")
+        && ! cmd.hasOption("ensemble")) {
       LOGGER.error("Model structure is required");
       formatter.printHelp(100,
           "java -jar rna-hugs.jar -r <reference.pdb> -m <model.pdb> [OPTIONS]", "", options, "");
@@ -0,0 +1,223 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Batch mode. Aligns all pairs of a manifest in a single process, so JVM start, class loading and
+// JIT warm-up are paid once. Up to 'jobs' pairs are aligned at the same time and all of them share
+// one pool of config.threads threads. Every pair writes the same files as a single run.
+//
+// Manifest is a TSV file, one pair per line:
+//   reference <tab> model [<tab> method [<tab> mode [<tab> rmsd [<tab> output]]]]
+// Missing or empty columns take the command line values. Empty lines and lines starting with '#'
+// are skipped.
+//
+// Models can be also given as a directory or a glob (e.g. "models/*.pdb"), then all of them are
+// aligned against the reference of 'defaults'. Reference is read and indexed once (see
+// ReferenceIndex) and shared by all pairs.
+public class BatchAligner {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchAligner.class);
+
+  // Command line options used for missing manifest columns.
+  private final AlignmentJob defaults;
+  private final String defaultOutput;
+  private final int jobs;
+  // Structures repeated in the manifest (e.g. the reference) are read only once.
+  private final StructureCache cache;
+
+  private static final class Entry {
+    final int line;
+    final AlignmentJob job;
+    final String output;
+
+    Entry(int _line, final AlignmentJob _job, final String _output) {
+      line = _line;
+      job = _job;
+      output = _output;
+    }
+  }
+
+  // Model of 'defaults' is not used, its reference only by runModels. Null output means the model
+  // directory.
+  BatchAligner(final AlignmentJob _defaults, final String _defaultOutput, int _jobs,
+      final StructureCache _cache) {
+    super();
+    defaults = _defaults;
+    defaultOutput = _defaultOutput;
+    jobs = Math.max(1, _jobs);
+    cache = _cache;
+  }
+
+  // Returns the number of pairs that failed.
+  public int run(final String manifest) throws IOException {
+    return run(manifest, readManifest(manifest));
+  }
+
+  // Aligns the reference of 'defaults' against all models matching the pattern.
+  // Returns the number of pairs that failed.
+  public int runModels(final String models) throws IOException {
+    final ArrayList<Entry> entries = new ArrayList<Entry>();
+    final ArrayList<String> paths = listModels(models);
+    if (paths.isEmpty()) {
+      throw new IllegalArgumentException("No models found: " + models);
+    }
+    for (int i = 0; i < paths.size(); i++) {
+      final String model = paths.get(i);
+      entries.add(new Entry(i + 1, new AlignmentJob(new AlignerConfig(defaults.config),
+          defaults.reference, model, defaults.inputType, defaults.allowIncomplete, defaults.method,
+          defaults.isSequenceDependent, defaults.respectOrder),
+          defaultOutput != null ? defaultOutput : model));
+    }
+    return run(models, entries);
+  }
+
+  // Entries are reported as 'source:line'.
+  private int run(final String source, final ArrayList<Entry> entries) {
+    checkOutputNames(source, entries);
+    final ForkJoinPool threadPool = new ForkJoinPool(defaults.config.threads);
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, entries.size())));
+    final AtomicInteger failed = new AtomicInteger(0);
+    try {
+      for (final Entry entry : entries) {
+        executor.submit(() -> {
+          try {
+            align(entry, threadPool);
+          } catch (RuntimeException e) {
+            LOGGER.error("{}:{}: {}", source, entry.line, e.getMessage());
+            failed.incrementAndGet();
+          }
+        });
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+      threadPool.shutdown();
+    }
+    return failed.get();
+  }
+
+  private void align(final Entry entry, final ForkJoinPool threadPool) {
+    final AlignmentJob job = entry.job;
+    final File outputDirectory = App.resolveOutputDirectory(entry.output);
+    if (outputDirectory == null) {
+      throw new IllegalArgumentException("Output path directory is not a proper folder path: "
+          + entry.output);
+    }
+    final StructureCache.Structure referenceStructure =
+        cache.get(job.reference, job.inputType, job.allowIncomplete);
+    final StructureCache.Structure targetStructure =
+        cache.get(job.model, job.inputType, job.allowIncomplete);
+    LOGGER.info("Aligning {} and {}", job.reference, job.model);
+    final AlignerOutput output = job.calculate(referenceStructure, targetStructure, threadPool);
+    App.writeOutputs(job, outputDirectory, referenceStructure.nucleotides,
+        targetStructure.nucleotides, output);
+  }
+
+  // Output files are named after the model only, so two entries with the same model name and
+  // output directory would overwrite each other (or write the same files at the same time).
+  // Entries without a proper output directory fail later on their own.
+  private static void checkOutputNames(final String source, final ArrayList<Entry> entries) {
+    final HashMap<String, Integer> lines = new HashMap<String, Integer>();
+    for (final Entry entry : entries) {
+      final File outputDirectory = App.resolveOutputDirectory(entry.output);
+      if (outputDirectory == null) {
+        continue;
+      }
+      final String name = FilenameUtils.removeExtension(FilenameUtils.getName(entry.job.model));
+      final Integer previous = lines.putIfAbsent(
+          new File(outputDirectory.getAbsoluteFile(), name).toPath().normalize().toString(),
+          entry.line);
+      if (previous != null) {
+        throw new IllegalArgumentException(source + ":" + entry.line + ": output files of "
+            + entry.job.model + " would overwrite those of line " + previous
+            + ", use a different output directory");
+      }
+    }
+  }
+
+  private ArrayList<Entry> readManifest(final String manifest) throws IOException {
+    final List<String> lines = Files.readAllLines(Paths.get(manifest), StandardCharsets.UTF_8);
+    final ArrayList<Entry> entries = new ArrayList<Entry>();
+    for (int i = 0; i < lines.size(); i++) {
+      final String line = lines.get(i);
+      if (StringUtils.isBlank(line) || line.trim().startsWith("#")) {
+        continue;
+      }
+      final String[] columns = StringUtils.splitPreserveAllTokens(line, '\t');
+      if (columns.length < 2 || StringUtils.isBlank(columns[0])
+          || StringUtils.isBlank(columns[1])) {
+        throw new IllegalArgumentException(
+            manifest + ":" + (i + 1) + ": reference and model are required");
+      }
+      final String reference = columns[0].trim();
+      final String model = columns[1].trim();
+      final String method = column(columns, 2, defaults.method);
+      final String mode = column(columns, 3, null);
+      final String rmsd = column(columns, 4, null);
+      final String output = column(columns, 5, defaultOutput != null ? defaultOutput : model);
+
+      final AlignerConfig config = new AlignerConfig(defaults.config);
+      if (rmsd != null) {
+        try {
+          config.rmsdLimit = Double.parseDouble(rmsd);
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(manifest + ":" + (i + 1) + ": " + e.getMessage());
+        }
+      }
+      final boolean isSequenceDependent = (mode == null)
+          ? defaults.isSequenceDependent : StringUtils.equalsIgnoreCase(mode, "seq-dep");
+      entries.add(new Entry(i + 1, new AlignmentJob(config, reference, model, defaults.inputType,
+          defaults.allowIncomplete, method, isSequenceDependent, defaults.respectOrder), output));
+    }
+    return entries;
+  }
+
+  // Regular files of the directory, or matching the glob in the last path element, by name.
+  static ArrayList<String> listModels(final String models) throws IOException {
+    Path directory = Paths.get(models);
+    String glob = "*";
+    if (!Files.isDirectory(directory)) {
+      glob = directory.getFileName().toString();
+      directory = (directory.getParent() != null) ? directory.getParent() : Paths.get(".");
+    }
+    final ArrayList<String> result = new ArrayList<String>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob)) {
+      for (final Path file : files) {
+        if (Files.isRegularFile(file)) {
+          result.add(file.toString());
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private static String column(final String[] columns, int index, final String defaultValue) {
+    if (index >= columns.length || StringUtils.isBlank(columns[index])) {
+      return defaultValue;
+    }
+    return columns[index].trim();
+  }
+}
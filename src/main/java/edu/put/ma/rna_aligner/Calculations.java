@@ -22,6 +22,11 @@ public class Calculations {
     return new Superimposer(first_atoms, second_atoms);
   }
 
+  public static Superimposer FitForRMSD(
+      final CoordinatesBlock first_atoms, final CoordinatesBlock second_atoms) {
+    return new Superimposer(first_atoms, second_atoms);
+  }
+
   public static void rotate(Coordinates atom, final Matrix m) {
     double x = atom.x;
     double y = atom.y;
@@ -65,11 +70,18 @@ public class Calculations {
       return -1;
     }
 
-    Superimposer superimposer = FitForRMSD(first_atoms, second_atoms);
+    return FitAndCalculateRMSD(
+        CoordinatesBlock.fromList(first_atoms), CoordinatesBlock.fromList(second_atoms));
+  }
 
-    final ArrayList<Coordinates> fit_second_atoms = MoveAtomsForRMSD(second_atoms, superimposer);
+  public static double FitAndCalculateRMSD(
+      final CoordinatesBlock first_atoms, final CoordinatesBlock second_atoms) {
+    if (first_atoms.size != second_atoms.size) {
+      LOGGER.warn(String.format("WRONG LENGTH: %d %d", first_atoms.size, second_atoms.size));
+      return -1;
+    }
 
-    return CalculateRMSD(first_atoms, fit_second_atoms);
+    return CalculateRMSD(first_atoms, second_atoms, FitForRMSD(first_atoms, second_atoms));
   }
 
   public static double CalculateRMSD(
@@ -77,10 +89,81 @@ public class Calculations {
     return Superimposer.getRMS(first_atoms, second_atoms);
   }
 
+  public static double CalculateRMSD(
+      final CoordinatesBlock first_atoms, final CoordinatesBlock second_atoms) {
+    return Superimposer.getRMS(first_atoms, second_atoms);
+  }
+
   public static double CalculateRMSD(final ArrayList<Coordinates> first_atoms,
       final ArrayList<Coordinates> second_atoms, final Superimposer superimposer) {
-    final ArrayList<Coordinates> fit_second_atoms = MoveAtomsForRMSD(second_atoms, superimposer);
-    return Superimposer.getRMS(first_atoms, fit_second_atoms);
+    final double[][] m = superimposer.getRotation().getArray();
+    final Coordinates shift = superimposer.getTranslation();
+    double sum = 0.0;
+    for (int i = 0; i < first_atoms.size(); i++) {
+      final Coordinates a = first_atoms.get(i);
+      final Coordinates b = second_atoms.get(i);
+      final double dx = b.x * m[0][0] + b.y * m[1][0] + b.z * m[2][0] + shift.x - a.x;
+      final double dy = b.x * m[0][1] + b.y * m[1][1] + b.z * m[2][1] + shift.y - a.y;
+      final double dz = b.x * m[0][2] + b.y * m[1][2] + b.z * m[2][2] + shift.z - a.z;
+      sum += dx * dx + dy * dy + dz * dz;
+    }
+    return Math.sqrt(sum / first_atoms.size());
+  }
+
+  // Minimal RMSD after optimal superposition computed directly from the correlation matrix.
+  // No rotation or translation is built, use FitForRMSD only for accepted candidates.
+  public static double CalculateMinimalRMSD(
+      final CoordinatesBlock first_atoms, final CoordinatesBlock second_atoms) {
+    return Superimposer.getMinimalRMS(first_atoms, second_atoms);
+  }
+
+  // Same as above, 'workspace' (at least 9 elements) is reused for the correlation matrix.
+  public static double CalculateMinimalRMSD(final CoordinatesBlock first_atoms,
+      final CoordinatesBlock second_atoms, double[] workspace) {
+    return Superimposer.getMinimalRMS(first_atoms, second_atoms, workspace);
+  }
+
+  // RMSD of the first atoms and the second atoms moved by the superimposer.
+  // Second atoms are transformed on the fly, nothing is copied.
+  public static double CalculateRMSD(final CoordinatesBlock first_atoms,
+      final CoordinatesBlock second_atoms, final Superimposer superimposer) {
+    final double[][] m = superimposer.getRotation().getArray();
+    final Coordinates shift = superimposer.getTranslation();
+    final double[] a = first_atoms.data;
+    final double[] b = second_atoms.data;
+    double sum = 0.0;
+    for (int i = 0; i < first_atoms.size * 3; i += 3) {
+      final double bx = b[i];
+      final double by = b[i + 1];
+      final double bz = b[i + 2];
+      final double dx = bx * m[0][0] + by * m[1][0] + bz * m[2][0] + shift.x - a[i];
+      final double dy = bx * m[0][1] + by * m[1][1] + bz * m[2][1] + shift.y - a[i + 1];
+      final double dz = bx * m[0][2] + by * m[1][2] + bz * m[2][2] + shift.z - a[i + 2];
+      sum += dx * dx + dy * dy + dz * dz;
+    }
+    return Math.sqrt(sum / first_atoms.size);
+  }
+
+  // Move atoms in place (rotate and shift) with the superimposer.
+  public static void MoveAtoms(CoordinatesBlock atoms, final Superimposer superimposer) {
+    MoveAtoms(atoms, atoms, superimposer);
+  }
+
+  // Write atoms moved by the superimposer into the destination block.
+  public static void MoveAtoms(final CoordinatesBlock atoms, CoordinatesBlock destination,
+      final Superimposer superimposer) {
+    final double[][] m = superimposer.getRotation().getArray();
+    final Coordinates shift = superimposer.getTranslation();
+    final double[] src = atoms.data;
+    final double[] dst = destination.data;
+    for (int i = 0; i < atoms.size * 3; i += 3) {
+      final double x = src[i];
+      final double y = src[i + 1];
+      final double z = src[i + 2];
+      dst[i] = x * m[0][0] + y * m[1][0] + z * m[2][0] + shift.x;
+      dst[i + 1] = x * m[0][1] + y * m[1][1] + z * m[2][1] + shift.y;
+      dst[i + 2] = x * m[0][2] + y * m[1][2] + z * m[2][2] + shift.z;
+    }
   }
 
   public static Superimposer FitforTripleRMSD(
@@ -94,4 +177,30 @@ public class Calculations {
 
     return Calculations.FitForRMSD(first_centroids, second_centroids);
   }
+
+  // Fit only the centroids of 3 nucleotides (3 representatives each).
+  public static Superimposer FitforTripleRMSD(
+      final CoordinatesBlock first_atoms, final CoordinatesBlock second_atoms) {
+    CoordinatesBlock first_centroids = new CoordinatesBlock(3);
+    CoordinatesBlock second_centroids = new CoordinatesBlock(3);
+    for (int i = 0; i < 3; i++) {
+      first_centroids.set(i, first_atoms.getCentroid(i * 3, i * 3 + 3));
+      second_centroids.set(i, second_atoms.getCentroid(i * 3, i * 3 + 3));
+    }
+
+    return Calculations.FitForRMSD(first_centroids, second_centroids);
+  }
+
+  // Same as above but refits 'superimposer' in place. Centroids are written into given blocks
+  // (3 atoms each) and 'workspace' (at least 9 elements) holds the correlation matrix.
+  public static void FitforTripleRMSD(final CoordinatesBlock first_atoms,
+      final CoordinatesBlock second_atoms, CoordinatesBlock first_centroids,
+      CoordinatesBlock second_centroids, Superimposer superimposer, double[] workspace) {
+    for (int i = 0; i < 3; i++) {
+      first_centroids.setCentroid(i, first_atoms, i * 3, i * 3 + 3);
+      second_centroids.setCentroid(i, second_atoms, i * 3, i * 3 + 3);
+    }
+
+    superimposer.fit(first_centroids, second_centroids, workspace);
+  }
 }
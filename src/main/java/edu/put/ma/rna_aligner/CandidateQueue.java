@@ -0,0 +1,145 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Candidates for the greedy chain extension: binary min-heap of (reference, target) additions
+// keyed by their cost, stored in primitive arrays. Nucleotides already in the chain are marked in
+// bitsets and entries using them are dropped lazily when they reach the top of the heap.
+// Equal costs are ordered by larger reference and then larger target first.
+public class CandidateQueue {
+  public final BitSet usedReference;
+  public final BitSet usedTarget;
+  // Number of (reference, target) pairs in the chain.
+  public int used = 0;
+
+  private double[] costs;
+  private int[] references;
+  private int[] targets;
+  private int size = 0;
+
+  public CandidateQueue(int referenceSize, int targetSize) {
+    usedReference = new BitSet(referenceSize);
+    usedTarget = new BitSet(targetSize);
+    costs = new double[16];
+    references = new int[16];
+    targets = new int[16];
+  }
+
+  // Marks nucleotides as used by the chain.
+  public final void use(int reference, int target) {
+    usedReference.set(reference);
+    usedTarget.set(target);
+    used++;
+  }
+
+  public final boolean isUsed(int reference, int target) {
+    return usedReference.get(reference) || usedTarget.get(target);
+  }
+
+  // Removes all candidates and used nucleotides.
+  public final void reset() {
+    usedReference.clear();
+    usedTarget.clear();
+    used = 0;
+    size = 0;
+  }
+
+  // Removes all candidates, used nucleotides are kept.
+  public final void clear() {
+    size = 0;
+  }
+
+  public final void push(int reference, int target, double cost) {
+    if (size == costs.length) {
+      final int capacity = size * 2;
+      costs = Arrays.copyOf(costs, capacity);
+      references = Arrays.copyOf(references, capacity);
+      targets = Arrays.copyOf(targets, capacity);
+    }
+    int index = size++;
+    while (index > 0) {
+      final int parent = (index - 1) >>> 1;
+      if (!IsBefore(cost, reference, target, costs[parent], references[parent],
+              targets[parent])) {
+        break;
+      }
+      move(parent, index);
+      index = parent;
+    }
+    set(index, reference, target, cost);
+  }
+
+  // Drops used candidates from the top. Returns false if there is no valid candidate left.
+  public final boolean skipUsed() {
+    while (size > 0 && isUsed(references[0], targets[0])) {
+      pop();
+    }
+    return size > 0;
+  }
+
+  public final int peekReference() {
+    return references[0];
+  }
+
+  public final int peekTarget() {
+    return targets[0];
+  }
+
+  public final double peekCost() {
+    return costs[0];
+  }
+
+  public final void pop() {
+    size--;
+    if (size == 0) {
+      return;
+    }
+    final double cost = costs[size];
+    final int reference = references[size];
+    final int target = targets[size];
+    int index = 0;
+    while (true) {
+      int child = index * 2 + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size
+          && IsBefore(costs[child + 1], references[child + 1], targets[child + 1], costs[child],
+              references[child], targets[child])) {
+        child++;
+      }
+      if (!IsBefore(costs[child], references[child], targets[child], cost, reference, target)) {
+        break;
+      }
+      move(child, index);
+      index = child;
+    }
+    set(index, reference, target, cost);
+  }
+
+  public final int size() {
+    return size;
+  }
+
+  private static boolean IsBefore(double lhsCost, int lhsReference, int lhsTarget,
+      double rhsCost, int rhsReference, int rhsTarget) {
+    if (lhsCost != rhsCost) {
+      return lhsCost < rhsCost;
+    }
+    if (lhsReference != rhsReference) {
+      return lhsReference > rhsReference;
+    }
+    return lhsTarget > rhsTarget;
+  }
+
+  private void move(int from, int to) {
+    set(to, references[from], targets[from], costs[from]);
+  }
+
+  private void set(int index, int reference, int target, double cost) {
+    costs[index] = cost;
+    references[index] = reference;
+    targets[index] = target;
+  }
+}
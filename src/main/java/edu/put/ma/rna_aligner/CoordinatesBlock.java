@@ -0,0 +1,95 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.ArrayList;
+
+// Primitive storage of atom coordinates used in the superposition hot path.
+// Coordinates are interleaved (x0, y0, z0, x1, y1, z1, ...) in a single array so that the kernels
+// in 'Calculations' and 'Superimposer' can walk them without touching boxed 'Coordinates'.
+public class CoordinatesBlock {
+  public final double[] data;
+  public final int size;
+
+  public CoordinatesBlock(int _size) {
+    size = _size;
+    data = new double[_size * 3];
+  }
+
+  public CoordinatesBlock(final CoordinatesBlock rhs) {
+    size = rhs.size;
+    data = rhs.data.clone();
+  }
+
+  public static CoordinatesBlock fromList(final ArrayList<Coordinates> atoms) {
+    CoordinatesBlock block = new CoordinatesBlock(atoms.size());
+    for (int i = 0; i < atoms.size(); i++) {
+      block.set(i, atoms.get(i));
+    }
+    return block;
+  }
+
+  public final ArrayList<Coordinates> toList() {
+    ArrayList<Coordinates> atoms = new ArrayList<Coordinates>(size);
+    for (int i = 0; i < size; i++) {
+      atoms.add(get(i));
+    }
+    return atoms;
+  }
+
+  public final void set(int index, double x, double y, double z) {
+    data[index * 3] = x;
+    data[index * 3 + 1] = y;
+    data[index * 3 + 2] = z;
+  }
+
+  public final void set(int index, final Coordinates atom) {
+    set(index, atom.x, atom.y, atom.z);
+  }
+
+  public final Coordinates get(int index) {
+    return new Coordinates(data[index * 3], data[index * 3 + 1], data[index * 3 + 2]);
+  }
+
+  // Copy 'count' atoms starting from 'sourceIndex' of the source block into this block at 'index'.
+  public final void copy(final CoordinatesBlock source, int sourceIndex, int index, int count) {
+    System.arraycopy(source.data, sourceIndex * 3, data, index * 3, count * 3);
+  }
+
+  // Sets atom 'index' to the centroid of atoms [idx_start, idx_end) of the source block.
+  public final void setCentroid(
+      int index, final CoordinatesBlock source, int idx_start, int idx_end) {
+    double x = 0, y = 0, z = 0;
+    for (int i = idx_start * 3; i < idx_end * 3; i += 3) {
+      x += source.data[i];
+      y += source.data[i + 1];
+      z += source.data[i + 2];
+    }
+    final int count = idx_end - idx_start;
+    set(index, x / count, y / count, z / count);
+  }
+
+  public final Coordinates getCentroid() {
+    return getCentroid(0, size);
+  }
+
+  public final Coordinates getCentroid(int idx_start, int idx_end) {
+    return getCentroid(new Coordinates(), idx_start, idx_end);
+  }
+
+  // Same as above, result is written into 'centroid'.
+  public final Coordinates getCentroid(Coordinates centroid, int idx_start, int idx_end) {
+    centroid.x = 0;
+    centroid.y = 0;
+    centroid.z = 0;
+    for (int i = idx_start * 3; i < idx_end * 3; i += 3) {
+      centroid.x += data[i];
+      centroid.y += data[i + 1];
+      centroid.z += data[i + 2];
+    }
+
+    centroid.x /= (idx_end - idx_start);
+    centroid.y /= (idx_end - idx_start);
+    centroid.z /= (idx_end - idx_start);
+
+    return centroid;
+  }
+}
@@ -0,0 +1,125 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Coordinator side of the distributed mode. Splits a job between WorkerServer processes and
+// merges their results: the most aligned residues first, then the lowest RMSD.
+// GEOS workers search disjoint shards of the reference pairs (pair id % workers), GENS workers
+// evolve independent populations.
+public class Coordinator {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Coordinator.class);
+  // Time given to a worker over the job time limit before its connection is dropped.
+  private static final int RESPONSE_MARGIN = 60000;
+
+  private final ArrayList<InetSocketAddress> workers;
+
+  Coordinator(final ArrayList<InetSocketAddress> _workers) {
+    super();
+    workers = _workers;
+  }
+
+  // Parses comma separated "host:port" list.
+  public static ArrayList<InetSocketAddress> parseAddresses(final String addresses) {
+    final ArrayList<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+    for (final String address : StringUtils.split(addresses, ',')) {
+      result.add(parseAddress(address.trim(), null));
+    }
+    return result;
+  }
+
+  // Parses "host:port" or "port", in the latter case 'defaultHost' is used (loopback if null).
+  public static InetSocketAddress parseAddress(final String address, final String defaultHost) {
+    final int separator = address.lastIndexOf(':');
+    final String host = (separator >= 0) ? address.substring(0, separator) : defaultHost;
+    final int port = Integer.parseInt(address.substring(separator + 1));
+    if (host == null) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+    return new InetSocketAddress(host, port);
+  }
+
+  public AlignerOutput calculate(final AlignmentJob job,
+      final ArrayList<Nucleotide> referenceStructure,
+      final ArrayList<Nucleotide> targetStructure) {
+    final long start = System.currentTimeMillis();
+    final ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+    AlignerOutput best = null;
+    try {
+      final ArrayList<Future<AlignerOutput>> results = new ArrayList<Future<AlignerOutput>>();
+      for (int i = 0; i < workers.size(); i++) {
+        final InetSocketAddress worker = workers.get(i);
+        final String line =
+            job.isGeometric() ? job.toLine(i, workers.size()) : job.toLine(0, 1);
+        final int timeout = (int) (job.config.returnTime * 1000) + RESPONSE_MARGIN;
+        results.add(executor.submit(
+            () -> resultFromLine(send(worker, line, timeout), worker, referenceStructure,
+                targetStructure)));
+      }
+      for (final Future<AlignerOutput> result : results) {
+        final AlignerOutput output = result.get();
+        if (output != null && (best == null || output.aligned > best.aligned
+                || (output.aligned == best.aligned && output.rmsd < best.rmsd))) {
+          best = output;
+        }
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+    if (best == null) {
+      return null;
+    }
+    return new AlignerOutput(best.aligned, best.referenceIndexes, best.targetMapping,
+        best.superimposer, System.currentTimeMillis() - start, best.rmsd);
+  }
+
+  // Failed workers are skipped, the result is merged from the remaining ones.
+  private static AlignerOutput resultFromLine(final String line, final InetSocketAddress worker,
+      final ArrayList<Nucleotide> referenceStructure,
+      final ArrayList<Nucleotide> targetStructure) {
+    if (line == null) {
+      return null;
+    }
+    try {
+      return AlignmentJob.resultFromLine(line, referenceStructure, targetStructure);
+    } catch (RuntimeException e) {
+      LOGGER.error("Worker {} failed: {}", worker, e.getMessage());
+      return null;
+    }
+  }
+
+  private static String send(final InetSocketAddress worker, final String line, int timeout) {
+    try (Socket socket = new Socket()) {
+      socket.connect(worker, timeout);
+      socket.setSoTimeout(timeout);
+      final Writer writer =
+          new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      writer.write(line);
+      writer.write('\n');
+      writer.flush();
+      final BufferedReader reader = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      return reader.readLine();
+    } catch (IOException e) {
+      LOGGER.error("Worker {} failed: {}", worker, e.getMessage());
+      return null;
+    }
+  }
+}
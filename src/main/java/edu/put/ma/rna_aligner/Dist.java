@@ -44,6 +44,34 @@ public class Dist {
     }
     return similarity;
   }
+
+  // Same as above for pairs stored in distance matrices.
+  public static double Similarity(final DistanceMatrix lhs, final int lhsPair,
+      final DistanceMatrix rhs, final int rhsPair) {
+    double similarity = 0;
+    for (int i = 0; i < lhs.representatives; i++) {
+      final double difference = lhs.get(lhsPair, i) - rhs.get(rhsPair, i);
+      similarity += difference * difference;
+    }
+    return similarity;
+  }
+
+  // Same as above for 3 nucleotides with pairs stored in distance matrices.
+  public static double Similarity(final DistanceMatrix lhs, final DistanceMatrix rhs,
+      final int lhsPair1, final int rhsPair1, final int lhsPair2, final int rhsPair2,
+      final int lhsPair3, final int rhsPair3) {
+    double similarity = 0;
+    for (int i = 0; i < lhs.representatives; i++) {
+      final double dist1 = Math.abs(lhs.get(lhsPair1, i) - rhs.get(rhsPair1, i));
+      final double dist2 = Math.abs(lhs.get(lhsPair2, i) - rhs.get(rhsPair2, i));
+      final double dist3 = Math.abs(lhs.get(lhsPair3, i) - rhs.get(rhsPair3, i));
+      similarity += (dist1 - dist2) * (dist1 - dist2);
+      similarity += (dist2 - dist3) * (dist2 - dist3);
+      similarity += (dist3 - dist1) * (dist3 - dist1);
+    }
+    return similarity;
+  }
+
   public String toString() {
     final StringBuilder result = new StringBuilder();
     final DecimalFormat df = new DecimalFormat("#.00");
@@ -0,0 +1,73 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.Arrays;
+
+// For every nucleotide keeps all other nucleotides sorted by the distance between their first
+// representatives. Allows to visit only nucleotides within a distance shell around a nucleotide
+// without scanning the whole structure.
+public class DistanceIndex {
+  private final int[][] order;
+  private final double[][] distances;
+
+  public DistanceIndex(final DistanceMatrix _distances) {
+    final int size = _distances.size;
+    order = new int[size][];
+    distances = new double[size][];
+    // Rows are sorted as primitive keys: distance bits (non-negative doubles are ordered like
+    // their bits) with the nucleotide in place of the lowest bits. Truncated distances can leave
+    // nearly equal ones out of order, a final insertion pass restores the exact order.
+    final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 1));
+    final long mask = (1L << bits) - 1;
+    final long[] keys = new long[Math.max(size - 1, 0)];
+    for (int c = 0; c < size; c++) {
+      for (int j = 0, k = 0; j < size; j++) {
+        if (j != c) {
+          keys[k++] = (Double.doubleToRawLongBits(_distances.get(c, j, 0)) & ~mask) | j;
+        }
+      }
+      Arrays.sort(keys);
+      final int[] row = new int[keys.length];
+      final double[] shell = new double[keys.length];
+      for (int k = 0; k < keys.length; k++) {
+        final int j = (int) (keys[k] & mask);
+        final double distance = _distances.get(c, j, 0);
+        int position = k;
+        for (; position > 0 && shell[position - 1] > distance; position--) {
+          row[position] = row[position - 1];
+          shell[position] = shell[position - 1];
+        }
+        row[position] = j;
+        shell[position] = distance;
+      }
+      order[c] = row;
+      distances[c] = shell;
+    }
+  }
+
+  // Fills 'result' (at least structure size elements) with nucleotides j for which
+  // |distance(c, j) - distance| <= tolerance in ascending order. Returns number of found ones.
+  public int query(final int c, final double distance, final double tolerance, int[] result) {
+    final double[] shell = distances[c];
+    final int first = LowerBound(shell, distance - tolerance);
+    int count = 0;
+    for (int k = first; k < shell.length && shell[k] <= distance + tolerance; k++) {
+      result[count++] = order[c][k];
+    }
+    Arrays.sort(result, 0, count);
+    return count;
+  }
+
+  private static int LowerBound(final double[] values, final double value) {
+    int low = 0;
+    int high = values.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (values[mid] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,59 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.ArrayList;
+
+// Distances between the same representatives of all pairs of nucleotides. Only the upper
+// triangle (i < j) is stored, packed row after row, one primitive stripe per representative.
+// Replaces n x n array of 'Dist' objects with boxed values.
+public class DistanceMatrix {
+  public final int size;
+  public final int representatives;
+  // stripes[r][pair] - distance between representatives 'r' of the pair.
+  private final double[][] stripes;
+
+  public DistanceMatrix(final ArrayList<Nucleotide> nucleotides) {
+    size = nucleotides.size();
+    representatives = (size == 0) ? 0 : nucleotides.get(0).representatives.size();
+    stripes = new double[representatives][pairs()];
+    int pair = 0;
+    for (int i = 0; i < size; i++) {
+      final ArrayList<Coordinates> lhs = nucleotides.get(i).representatives;
+      for (int j = i + 1; j < size; j++) {
+        final ArrayList<Coordinates> rhs = nucleotides.get(j).representatives;
+        for (int r = 0; r < representatives; r++) {
+          stripes[r][pair] = Coordinates.getDistance(lhs.get(r), rhs.get(r));
+        }
+        pair++;
+      }
+    }
+  }
+
+  // Number of stored pairs.
+  public final int pairs() {
+    return size * (size - 1) / 2;
+  }
+
+  // Index of the pair in the packed storage. Order is the same as in the nested (i, j > i) loop.
+  public final int pair(int i, int j) {
+    if (i > j) {
+      final int tmp = i;
+      i = j;
+      j = tmp;
+    }
+    return (int) ((long) i * (2 * size - i - 1) / 2) + (j - i - 1);
+  }
+
+  // Distances of all pairs between representatives 'r', shared with the matrix. Must not be
+  // modified.
+  public final double[] stripe(int representative) {
+    return stripes[representative];
+  }
+
+  public final double get(int pair, int representative) {
+    return stripes[representative][pair];
+  }
+
+  public final double get(int i, int j, int representative) {
+    return stripes[representative][pair(i, j)];
+  }
+}
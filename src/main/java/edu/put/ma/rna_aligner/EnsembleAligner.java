@@ -0,0 +1,114 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Ensemble mode. Aligns the reference against every model of a multi-model (NMR or MD ensemble)
+// file while it is read, see StructureParser.StreamModelsToCoarseGrained. Up to 'jobs' models are
+// aligned at the same time and at most as many wait for them, so the memory does not depend on
+// the number of models. All alignments share one pool of config.threads threads.
+// Results are written to <ensemble>-ensemble.csv, one row per model in the file order:
+//   model, aligned residues, RMSD, processing time [ms]
+// Cells of models that failed are empty.
+public class EnsembleAligner {
+  private static final Logger LOGGER = LoggerFactory.getLogger(EnsembleAligner.class);
+
+  // Reference is aligned against all models of the job model file.
+  private final AlignmentJob job;
+  private final int jobs;
+
+  EnsembleAligner(final AlignmentJob _job, int _jobs) {
+    super();
+    job = _job;
+    jobs = Math.max(1, _jobs);
+  }
+
+  // Null output means the directory of the ensemble. Returns the number of models that failed.
+  public int run(final String output) throws IOException {
+    final File outputDirectory =
+        App.resolveOutputDirectory((output != null) ? output : job.model);
+    if (outputDirectory == null) {
+      throw new IllegalArgumentException("Output path directory is not a proper folder path: "
+          + output);
+    }
+    final ReferenceIndex referenceIndex = new ReferenceIndex(job.read(job.reference));
+
+    final ConcurrentSkipListMap<Integer, String> rows =
+        new ConcurrentSkipListMap<Integer, String>();
+    final AtomicInteger failed = new AtomicInteger(0);
+    final AtomicInteger order = new AtomicInteger(0);
+    final Semaphore pending = new Semaphore(jobs * 2);
+    final ForkJoinPool threadPool = new ForkJoinPool(job.config.threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    int models = 0;
+    try {
+      models = new StructureParser().StreamModelsToCoarseGrained(job.model, job.inputType,
+          job.allowIncomplete, (number, model) -> {
+            final int index = order.getAndIncrement();
+            pending.acquireUninterruptibly();
+            executor.submit(() -> {
+              try {
+                rows.put(index, align(referenceIndex, number, model, threadPool));
+              } catch (RuntimeException e) {
+                LOGGER.error("{} model {}: {}", job.model, number, e.getMessage());
+                rows.put(index, number + ",,,");
+                failed.incrementAndGet();
+              } finally {
+                pending.release();
+              }
+            });
+          });
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+      threadPool.shutdown();
+    }
+    if (models == 0) {
+      throw new IllegalArgumentException("No models read from " + job.model);
+    }
+
+    final StringBuilder csv = new StringBuilder("model,aligned,rmsd,processing time\n");
+    for (final Map.Entry<Integer, String> row : rows.entrySet()) {
+      csv.append(row.getValue()).append('\n');
+    }
+    final File file = new File(outputDirectory,
+        FilenameUtils.removeExtension(FilenameUtils.getName(job.model)) + "-ensemble.csv");
+    Files.write(file.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+    return failed.get();
+  }
+
+  private String align(final ReferenceIndex referenceIndex, int number,
+      final ArrayList<Nucleotide> model, final ForkJoinPool threadPool) {
+    if (model.isEmpty()) {
+      throw new IllegalArgumentException("No nucleotides read");
+    }
+    LOGGER.info("Aligning {} and model {} of {}", job.reference, number, job.model);
+    final AlignmentJob modelJob = new AlignmentJob(new AlignerConfig(job.config), job.reference,
+        job.model, job.inputType, job.allowIncomplete, job.method, job.isSequenceDependent,
+        job.respectOrder);
+    final AlignerOutput output = modelJob.calculate(referenceIndex, model, threadPool);
+    if (output == null || output.aligned <= 0) {
+      return number + ",0,,";
+    }
+    return String.format(Locale.US, "%d,%d,%.3f,%d", number, output.aligned, output.rmsd,
+        output.processingTime);
+  }
+}
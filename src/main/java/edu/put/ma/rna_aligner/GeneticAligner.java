@@ -1,9 +1,14 @@
 package edu.put.ma.rna_aligner;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Random;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
 import java.util.stream.IntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +19,8 @@ public class GeneticAligner {
   private final AlignerConfig config;
   private final ArrayList<Nucleotide> referenceStructure;
   private final ArrayList<Nucleotide> targetStructure;
+  // Index of the original reference, reused by the geometric population unless swapped.
+  private final ReferenceIndex referenceIndex;
 
   private final int crossChance;
   private final int mutationChance;
@@ -21,35 +28,63 @@ public class GeneticAligner {
 
   private Random rand = new Random();
   private long globalStart = System.currentTimeMillis();
-  private long stopTime;
-
-  private Semaphore semaphore = new Semaphore(1);
-  private int bestAlignmentSize = -1;
-  private double bestAlignmentRMSD = 10000;
-  private double bestAlignmentIncorrectlyAlignedResiduesRatio = 10000;
-  private Specimen bestSpecimen;
-  private boolean terminate = false;
-  private int numberOfPopulationsWithoutImprovement = 0;
+  private final AtomicLong stopTime = new AtomicLong();
+
+  private final AtomicReference<BestAlignment> best =
+      new AtomicReference<BestAlignment>(new BestAlignment(-1, 10000, 10000, null));
+  private volatile boolean terminate = false;
+  private final LongAdder numberOfPopulationsWithoutImprovement = new LongAdder();
   private boolean isSequenceDependent;
   private double rmsdLimit;
   private boolean areSequencesSwapped = false;
   private boolean respectOrder = false;
+  // Shared by all specimens of this aligner.
+  private final SpecimenFitness fitness;
+
+  // Pool used by the evolution threads and the geometric population. Created in calculate()
+  // unless provided by the caller.
+  private ForkJoinPool threadPool;
+  // Exchange of the best specimens between threads (islands), null if migration is disabled.
+  private MigrationChannel migrationChannel;
 
   GeneticAligner(final AlignerConfig _config, final ArrayList<Nucleotide> _referenceStructure,
       final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
       final double _rmsdLimit, final boolean _respectOrder) {
+    this(_config, _referenceStructure, _targetStructure, _isSequenceDependent, _rmsdLimit,
+        _respectOrder, null);
+  }
+
+  // Pool is shared with the caller and is not shut down by the aligner.
+  GeneticAligner(final AlignerConfig _config, final ArrayList<Nucleotide> _referenceStructure,
+      final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
+      final double _rmsdLimit, final boolean _respectOrder, final ForkJoinPool _threadPool) {
+    this(_config, new ReferenceIndex(_referenceStructure), _targetStructure, _isSequenceDependent,
+        _rmsdLimit, _respectOrder, _threadPool);
+  }
+
+  // Reference index is shared (e.g. one reference aligned against many models), not modified.
+  GeneticAligner(final AlignerConfig _config, final ReferenceIndex _referenceIndex,
+      final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
+      final double _rmsdLimit, final boolean _respectOrder, final ForkJoinPool _threadPool) {
     super();
     config = _config;
-    
-    if (_referenceStructure.size() > _targetStructure.size()) {
+    threadPool = _threadPool;
+    referenceIndex = _referenceIndex;
+    final CoordinatesBlock targetBlock = Nucleotide.NucleotidesToBlock(_targetStructure);
+
+    if (referenceIndex.size() > _targetStructure.size()) {
       referenceStructure = _targetStructure;
-      targetStructure = _referenceStructure;
+      targetStructure = referenceIndex.structure;
       areSequencesSwapped = true;
+      fitness = new SpecimenFitness(targetBlock, referenceIndex.block,
+          referenceIndex.representatives);
     } else {
-      referenceStructure = _referenceStructure;
+      referenceStructure = referenceIndex.structure;
       targetStructure = _targetStructure;
+      fitness = new SpecimenFitness(referenceIndex.block, targetBlock,
+          referenceIndex.representatives);
     }
-    
+
     isSequenceDependent = _isSequenceDependent;
     respectOrder = _respectOrder;
     //if ((isSequenceDependent) && (referenceStructure.size() != targetStructure.size())) {
@@ -59,11 +94,57 @@ public class GeneticAligner {
     mutationChance = config.mutationChance + crossChance;
     newSpecimenChance = config.newSpecimenChance + mutationChance;
     rmsdLimit = _rmsdLimit;
-    stopTime = (long) ((globalStart + (1000 * config.returnTime * 0.25)));
+    stopTime.set((long) ((globalStart + (1000 * config.returnTime * 0.25))));
+  }
+
+  // Immutable snapshot of the best alignment found so far. Threads replace it as a whole with CAS
+  // so they only contend when they actually improve the result.
+  private static final class BestAlignment {
+    final int size;
+    final double rmsd;
+    final double incorrectlyAlignedResiduesRatio;
+    final Specimen specimen;
+
+    BestAlignment(final int _size, final double _rmsd,
+        final double _incorrectlyAlignedResiduesRatio, final Specimen _specimen) {
+      size = _size;
+      rmsd = _rmsd;
+      incorrectlyAlignedResiduesRatio = _incorrectlyAlignedResiduesRatio;
+      specimen = _specimen;
+    }
+  }
+
+  // Publish candidate while it is an improvement over the current best alignment.
+  // Returns replaced alignment or null if candidate was not published.
+  private BestAlignment publishBest(final BestAlignment candidate,
+      final BiPredicate<BestAlignment, BestAlignment> isImprovement) {
+    BestAlignment current = best.get();
+    while (isImprovement.test(candidate, current)) {
+      if (best.compareAndSet(current, candidate)) {
+        return current;
+      }
+      current = best.get();
+    }
+    return null;
   }
 
-  private ArrayList<Specimen> nextGeneration(ArrayList<Specimen> generation) {
-    ArrayList<Specimen> new_generation = new ArrayList<Specimen>();
+  private boolean isBetterAlignment(final BestAlignment candidate, final BestAlignment current) {
+    return (candidate.rmsd <= rmsdLimit && candidate.size > current.size)
+        || ((Double.compare(candidate.size, current.size) == 0)
+            && (candidate.rmsd < current.rmsd));
+  }
+
+  private boolean isBetterFinalAlignment(
+      final BestAlignment candidate, final BestAlignment current) {
+    return (candidate.rmsd <= rmsdLimit) && (((!isSequenceDependent || candidate.incorrectlyAlignedResiduesRatio < current.incorrectlyAlignedResiduesRatio) &&
+        ((!isSequenceDependent || Double.compare(candidate.incorrectlyAlignedResiduesRatio, current.incorrectlyAlignedResiduesRatio) == 0) &&
+         (candidate.size > current.size)) ||
+        ((!isSequenceDependent || Double.compare(candidate.incorrectlyAlignedResiduesRatio, current.incorrectlyAlignedResiduesRatio) == 0) &&
+         (candidate.size == current.size) && (candidate.rmsd < current.rmsd))));
+  }
+
+  private Population nextGeneration(final Population generation) {
+    Population new_generation = new Population(config.populationSize);
     for (int i = 0; i < (generation.size() * config.bestPercentage); i++) {
       new_generation.add(generation.get(i));
     }
@@ -91,7 +172,8 @@ public class GeneticAligner {
         // Create new completely random specimen.
         do {
           newSpecimen =
-              new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
+              new Specimen(config, referenceStructure, targetStructure, isSequenceDependent,
+                  respectOrder, fitness);
           newSpecimen.initialize(rand.nextInt(100) + 1);
         } while (!(newSpecimen.getUsedNucleotidesNumber() > 1
             && Double.compare(newSpecimen.calculateRMSD(), rmsdLimit) <= 0));
@@ -111,7 +193,7 @@ public class GeneticAligner {
       }
     }
 
-    Collections.sort(new_generation, new SpecimenComparator(rmsdLimit));
+    new_generation.sort(new SpecimenComparator(rmsdLimit));
     return new_generation;
   }
 
@@ -128,13 +210,16 @@ public class GeneticAligner {
       timeImprovement =
           (long) Math.max(timeLeft * config.imprRmsdPercentage, config.imprRmsdFlat * 1000.);
     }
-    long timeBuffer = Math.max(stopTime, now) + timeImprovement - now;
-    if (timeBuffer < config.waitBufferFlat) {
-      timeBuffer = config.waitBufferFlat;
-    } else {
-      timeBuffer = (long) Math.min(timeBuffer, timeLeft * config.waitBufferPercentage);
-    }
-    stopTime = (long) Math.min(now + timeBuffer, globalStart + (config.returnTime * 1000));
+    final long improvement = timeImprovement;
+    stopTime.updateAndGet(previous -> {
+      long timeBuffer = Math.max(previous, now) + improvement - now;
+      if (timeBuffer < config.waitBufferFlat) {
+        timeBuffer = config.waitBufferFlat;
+      } else {
+        timeBuffer = (long) Math.min(timeBuffer, timeLeft * config.waitBufferPercentage);
+      }
+      return (long) Math.min(now + timeBuffer, globalStart + (config.returnTime * 1000));
+    });
   }
 
   private ArrayList<Specimen> generatePopulationPool(int populationSize) {
@@ -153,9 +238,12 @@ public class GeneticAligner {
 
 
       conf_tmp.threads = config.threads;
-      GeometricAligner aligner = new GeometricAligner(
-          conf_tmp, referenceStructure, targetStructure, isSequenceDependent, rmsdLimit, respectOrder);
-      ArrayList<Specimen> res = aligner.createPopulation(populationSize);
+      GeometricAligner aligner = areSequencesSwapped
+          ? new GeometricAligner(conf_tmp, referenceStructure, targetStructure,
+              isSequenceDependent, rmsdLimit, respectOrder, threadPool)
+          : new GeometricAligner(conf_tmp, referenceIndex, targetStructure,
+              isSequenceDependent, rmsdLimit, respectOrder, threadPool, null);
+      ArrayList<Specimen> res = aligner.createPopulation(populationSize, fitness);
 
       // stopTime = (long) ((System.currentTimeMillis() + (1000 * config.returnTime * 0.2)));
 
@@ -168,225 +256,42 @@ public class GeneticAligner {
   }
 
   public AlignerOutput calculate() {
+    final boolean ownsThreadPool = (threadPool == null);
+    if (ownsThreadPool) {
+      threadPool = new ForkJoinPool(config.threads);
+    }
+    try {
+      return CalculateAllThreads();
+    } finally {
+      if (ownsThreadPool) {
+        threadPool.shutdown();
+        threadPool = null;
+      }
+    }
+  }
+
+  private AlignerOutput CalculateAllThreads() {
     IntStream threads = IntStream.range(0, config.threads);
-    numberOfPopulationsWithoutImprovement = 0;
+    numberOfPopulationsWithoutImprovement.reset();
+    migrationChannel = null;
+    if (config.migrationInterval > 0 && config.migrationSize > 0 && config.threads > 1) {
+      migrationChannel = new MigrationChannel(
+          config.migrationTopology, config.threads, config.migrationSize * config.threads);
+    }
     final ArrayList<Specimen> populationPool =
         generatePopulationPool((int) (Math.ceil(config.threads * 0.50)) * config.populationSize);
 
-    threads.parallel().forEach(index -> {
-      // No more than X seconds.
-
-      while (!terminate && (System.currentTimeMillis() < stopTime)
-          // Try to stay if current best is below 10%.
-          || (bestAlignmentSize < Math.min(referenceStructure.size(), targetStructure.size()) * 0.1
-              && (System.currentTimeMillis() < globalStart + config.returnTime * 1000))) {
-        ArrayList<Specimen> population = new ArrayList<Specimen>();
-        
-
-
-        // Create initial population
-        if (config.geometricPopulation) {
-          // Divide geometric population "equally"
-          for (int i = index; i < populationPool.size(); i += config.threads) {
-            Specimen spec;
-            if (populationPool.size() > i) {
-              spec = (Specimen) populationPool.get(i).clone();
-            } else {
-              // Geometric did not produce enough specimens. Select random one.
-              spec = new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
-              spec.initialize(rand.nextInt(85) + 5);
-              spec.refinement();
-              int count = 0;
-              while (spec.getUsedNucleotidesNumber() <= 1 && count < 20) {
-                spec =
-                    new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
-                spec.initialize(rand.nextInt(85) + 5);
-                spec.refinement();
-              }
-            }
-            if (!population.contains(spec)) {
-              spec.calculateRMSD();
-              population.add(spec);
-            }
-          }
-          // If population is not full, fill it.
-          if (population.size() < config.populationSize) {
-            int lacking = config.populationSize - population.size();
-            for (int i = 0; i < lacking; ++i) {
-              Specimen spec;
-              // Geometric did not produce enough specimens. Select random one.
-              spec = new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
-              spec.initialize(rand.nextInt(85) + 5);
-              spec.refinement();
-              int count = 0;
-              while (spec.getUsedNucleotidesNumber() <= 1 && count < 20) {
-                spec =
-                    new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
-                spec.initialize(rand.nextInt(85) + 5);
-                spec.refinement();
-              }
-              if (!population.contains(spec)) {
-                spec.calculateRMSD();
-                population.add(spec);
-              }
-            }
-
-          }
-        } else {
-          int count = 0;
-          while (population.size() < config.populationSize) {
-            if (count > 10) {
-              break;
-            }
-            final Specimen spec =
-                new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
-            spec.initialize(rand.nextInt(85) + 5);
-            spec.refinement();
-            if (spec.getUsedNucleotidesNumber() > 1) {
-              if (!population.contains(spec)) {
-                spec.calculateRMSD();
-                population.add(spec);
-                count = 0;
-              } else {
-                count++;
-              }
-            }
-          }
-        }
-
-        Collections.sort(population, new SpecimenComparator(rmsdLimit));
-
-        int best_size = population.get(0).getUsedNucleotidesNumber();
-        double best_rmsd = population.get(0).calculateRMSD();
-        double best_incorrectlyAlignedResiduesRatio =
-            population.get(0).getIncorrectlyAlignedResiduesRatio();
-        Specimen best_specimen = (Specimen) population.get(0).clone();
-        if (config.geometricPopulation) {
-          try {
-            semaphore.acquire();
-            if ((best_rmsd <= rmsdLimit && best_size > bestAlignmentSize)
-                || ((Double.compare(best_size, bestAlignmentSize) == 0)
-                    && (best_rmsd < bestAlignmentRMSD))) {
-              bestAlignmentSize = best_size;
-              bestAlignmentRMSD = best_rmsd;
-              bestAlignmentIncorrectlyAlignedResiduesRatio = best_incorrectlyAlignedResiduesRatio;
-              bestSpecimen = (Specimen) best_specimen.clone();
-            }
-            if (((bestAlignmentSize == Math.min(referenceStructure.size(), targetStructure.size()))
-                    /*&& (Double.compare(bestAlignmentRMSD,rmsdLimit) <= 0)*/)) {
-              terminate = true;
-              break;
-            }
-          } catch (InterruptedException e) {
-            LOGGER.error(e.getMessage(), e);
-          } finally {
-            semaphore.release();
-          }
-        }
-
-        if (!((best_size == Math.min(referenceStructure.size(), targetStructure.size()))
-                /*&& (Double.compare(best_rmsd,rmsdLimit) <= 0)*/)) {
-          long last_improvement = System.currentTimeMillis();
-
-          // Run while no improvement for config.resetThreadTime
-          // seconds. Then restart
-          while ((System.currentTimeMillis() - last_improvement < 1000 * config.resetThreadTime
-                     || config.geometricPopulation)
-              && System.currentTimeMillis() < stopTime) {
-            population = nextGeneration(population);
-
-            final int currentSize = population.get(0).getUsedNucleotidesNumber();
-            final double currentRmsd = population.get(0).calculateRMSD();
-            final double incorrectlyAlignedResiduesRatio =
-                population.get(0).getIncorrectlyAlignedResiduesRatio();
-            if (((!isSequenceDependent || best_incorrectlyAlignedResiduesRatio > incorrectlyAlignedResiduesRatio)
-                    && (Double.compare(currentRmsd, rmsdLimit) <= 0))
-                || ((!isSequenceDependent || Double.compare(
-                         best_incorrectlyAlignedResiduesRatio, incorrectlyAlignedResiduesRatio)
-                        == 0)
-                    && (best_size < currentSize) && (Double.compare(currentRmsd, rmsdLimit) <= 0))
-                || ((!isSequenceDependent || Double.compare(
-                         best_incorrectlyAlignedResiduesRatio, incorrectlyAlignedResiduesRatio)
-                        == 0)
-                    && (best_size == currentSize) && (best_rmsd > currentRmsd))) {
-              last_improvement = System.currentTimeMillis();
-
-              best_size = currentSize;
-              best_rmsd = currentRmsd;
-              best_incorrectlyAlignedResiduesRatio = incorrectlyAlignedResiduesRatio;
-              best_specimen = (Specimen) population.get(0).clone();
-              updatePopulationsNumber(true);
-              // Is it an improvement to the global result?
-              if (bestAlignmentSize < best_size
-                  || (best_rmsd < bestAlignmentRMSD && bestAlignmentSize == best_size)) {
-                // Update global best result.
-                try {
-                  semaphore.acquire();
-                  if ((best_rmsd <= rmsdLimit && best_size > bestAlignmentSize)
-                      || ((Double.compare(best_size, bestAlignmentSize) == 0)
-                          && (best_rmsd < bestAlignmentRMSD))) {
-                    updateStopTime(bestAlignmentSize < best_size);
-                    bestAlignmentSize = best_size;
-                    bestAlignmentRMSD = best_rmsd;
-                    bestAlignmentIncorrectlyAlignedResiduesRatio =
-                        best_incorrectlyAlignedResiduesRatio;
-                    bestSpecimen = (Specimen) best_specimen.clone();
-                  }
-                  if (((bestAlignmentSize
-                          == Math.min(referenceStructure.size(), targetStructure.size()))
-                          /*&& (Double.compare(bestAlignmentRMSD,rmsdLimit) <= 0)*/)) {
-                    terminate = true;
-                    break;
-                  }
-                } catch (InterruptedException e) {
-                  LOGGER.error(e.getMessage(), e);
-                } finally {
-                  semaphore.release();
-                }
-              }
-
-            } else {
-              updatePopulationsNumber(false);
-            }
-
-            if (((best_size == Math.min(referenceStructure.size(), targetStructure.size()))
-                    /*&& (Double.compare(best_rmsd,rmsdLimit) <= 0)*/)) {
-              terminate = true;
-              break;
-            }
-          }
-        }
-
-
-        try {
-          semaphore.acquire();
-          if ((best_rmsd <= rmsdLimit) && (((!isSequenceDependent || best_incorrectlyAlignedResiduesRatio < bestAlignmentIncorrectlyAlignedResiduesRatio) &&
-              ((!isSequenceDependent || Double.compare(best_incorrectlyAlignedResiduesRatio, bestAlignmentIncorrectlyAlignedResiduesRatio) == 0) &&
-               (best_size > bestAlignmentSize)) ||
-              ((!isSequenceDependent || Double.compare(best_incorrectlyAlignedResiduesRatio, bestAlignmentIncorrectlyAlignedResiduesRatio) == 0) &&
-               (best_size == bestAlignmentSize) && (best_rmsd < bestAlignmentRMSD))))) {
-//          if ((best_rmsd <= rmsdLimit && best_size > bestAlignmentSize)
-//              || ((Double.compare(best_size, bestAlignmentSize) == 0)
-//                  && (best_rmsd < bestAlignmentRMSD))) {
-            System.err.println(best_size + " " + best_rmsd);
-            bestAlignmentSize = best_size;
-            bestAlignmentRMSD = best_rmsd;
-            bestAlignmentIncorrectlyAlignedResiduesRatio = best_incorrectlyAlignedResiduesRatio;
-            bestSpecimen = (Specimen) best_specimen.clone();
-          }
-          if (((bestAlignmentSize == Math.min(referenceStructure.size(), targetStructure.size()))
-                  && (Double.compare(bestAlignmentRMSD, rmsdLimit) <= 0))
-              || (numberOfPopulationsWithoutImprovement > 300)) {
-            terminate = true;
-          }
-        } catch (InterruptedException e) {
-          LOGGER.error(e.getMessage(), e);
-        } finally {
-          semaphore.release();
-        }
-      }
-    });
+    try {
+      threadPool.submit(() -> threads.parallel().forEach(index -> {
+        evolve(index, populationPool);
+      })).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
 
+    final BestAlignment result = best.get();
+    final Specimen bestSpecimen = result.specimen;
+    final double bestAlignmentRMSD = result.rmsd;
     final ArrayList<Integer> referenceIndexes = new ArrayList<Integer>();
     final ArrayList<Integer> targetMapping = new ArrayList<Integer>();
 
@@ -431,18 +336,229 @@ public class GeneticAligner {
       }
   }
 
-  private final void updatePopulationsNumber(final boolean init) {
-    try {
-      semaphore.acquire();
-      if (init) {
-        numberOfPopulationsWithoutImprovement = 0;
+
+  // Single evolution thread. Restarts its population until the global termination conditions.
+  private void evolve(final int index, final ArrayList<Specimen> populationPool) {
+    // No more than X seconds.
+
+    while (!terminate && (System.currentTimeMillis() < stopTime.get())
+        // Try to stay if current best is below 10%.
+        || (best.get().size < Math.min(referenceStructure.size(), targetStructure.size()) * 0.1
+            && (System.currentTimeMillis() < globalStart + config.returnTime * 1000))) {
+      Population population = new Population(config.populationSize);
+      
+
+
+      // Create initial population
+      if (config.geometricPopulation) {
+        // Divide geometric population "equally"
+        for (int i = index; i < populationPool.size(); i += config.threads) {
+          Specimen spec;
+          if (populationPool.size() > i) {
+            spec = (Specimen) populationPool.get(i).clone();
+          } else {
+            // Geometric did not produce enough specimens. Select random one.
+            spec = new Specimen(config, referenceStructure, targetStructure, isSequenceDependent,
+                respectOrder, fitness);
+            spec.initialize(rand.nextInt(85) + 5);
+            spec.refinement();
+            int count = 0;
+            while (spec.getUsedNucleotidesNumber() <= 1 && count < 20) {
+              spec =
+                  new Specimen(config, referenceStructure, targetStructure, isSequenceDependent,
+                      respectOrder, fitness);
+              spec.initialize(rand.nextInt(85) + 5);
+              spec.refinement();
+            }
+          }
+          if (!population.contains(spec)) {
+            spec.calculateRMSD();
+            population.add(spec);
+          }
+        }
+        // If population is not full, fill it.
+        if (population.size() < config.populationSize) {
+          int lacking = config.populationSize - population.size();
+          for (int i = 0; i < lacking; ++i) {
+            Specimen spec;
+            // Geometric did not produce enough specimens. Select random one.
+            spec = new Specimen(config, referenceStructure, targetStructure, isSequenceDependent,
+                respectOrder, fitness);
+            spec.initialize(rand.nextInt(85) + 5);
+            spec.refinement();
+            int count = 0;
+            while (spec.getUsedNucleotidesNumber() <= 1 && count < 20) {
+              spec =
+                  new Specimen(config, referenceStructure, targetStructure, isSequenceDependent,
+                      respectOrder, fitness);
+              spec.initialize(rand.nextInt(85) + 5);
+              spec.refinement();
+            }
+            if (!population.contains(spec)) {
+              spec.calculateRMSD();
+              population.add(spec);
+            }
+          }
+
+        }
       } else {
-        numberOfPopulationsWithoutImprovement++;
+        int count = 0;
+        while (population.size() < config.populationSize) {
+          if (count > 10) {
+            break;
+          }
+          final Specimen spec =
+              new Specimen(config, referenceStructure, targetStructure, isSequenceDependent,
+                  respectOrder, fitness);
+          spec.initialize(rand.nextInt(85) + 5);
+          spec.refinement();
+          if (spec.getUsedNucleotidesNumber() > 1) {
+            if (!population.contains(spec)) {
+              spec.calculateRMSD();
+              population.add(spec);
+              count = 0;
+            } else {
+              count++;
+            }
+          }
+        }
       }
-    } catch (InterruptedException e) {
-      LOGGER.error(e.getMessage(), e);
-    } finally {
-      semaphore.release();
+
+      population.sort(new SpecimenComparator(rmsdLimit));
+
+      int best_size = population.get(0).getUsedNucleotidesNumber();
+      double best_rmsd = population.get(0).calculateRMSD();
+      double best_incorrectlyAlignedResiduesRatio =
+          population.get(0).getIncorrectlyAlignedResiduesRatio();
+      Specimen best_specimen = (Specimen) population.get(0).clone();
+      if (config.geometricPopulation) {
+        publishBest(new BestAlignment(best_size, best_rmsd, best_incorrectlyAlignedResiduesRatio,
+                        (Specimen) best_specimen.clone()),
+            this::isBetterAlignment);
+        if (((best.get().size == Math.min(referenceStructure.size(), targetStructure.size()))
+                /*&& (Double.compare(bestAlignmentRMSD,rmsdLimit) <= 0)*/)) {
+          terminate = true;
+          break;
+        }
+      }
+
+      if (!((best_size == Math.min(referenceStructure.size(), targetStructure.size()))
+              /*&& (Double.compare(best_rmsd,rmsdLimit) <= 0)*/)) {
+        long last_improvement = System.currentTimeMillis();
+        int generation = 0;
+
+        // Run while no improvement for config.resetThreadTime
+        // seconds. Then restart
+        while ((System.currentTimeMillis() - last_improvement < 1000 * config.resetThreadTime
+                   || config.geometricPopulation)
+            && System.currentTimeMillis() < stopTime.get()) {
+          population = nextGeneration(population);
+          if (migrationChannel != null && ++generation % config.migrationInterval == 0) {
+            migrate(index, population);
+          }
+
+          final int currentSize = population.get(0).getUsedNucleotidesNumber();
+          final double currentRmsd = population.get(0).calculateRMSD();
+          final double incorrectlyAlignedResiduesRatio =
+              population.get(0).getIncorrectlyAlignedResiduesRatio();
+          if (((!isSequenceDependent || best_incorrectlyAlignedResiduesRatio > incorrectlyAlignedResiduesRatio)
+                  && (Double.compare(currentRmsd, rmsdLimit) <= 0))
+              || ((!isSequenceDependent || Double.compare(
+                       best_incorrectlyAlignedResiduesRatio, incorrectlyAlignedResiduesRatio)
+                      == 0)
+                  && (best_size < currentSize) && (Double.compare(currentRmsd, rmsdLimit) <= 0))
+              || ((!isSequenceDependent || Double.compare(
+                       best_incorrectlyAlignedResiduesRatio, incorrectlyAlignedResiduesRatio)
+                      == 0)
+                  && (best_size == currentSize) && (best_rmsd > currentRmsd))) {
+            last_improvement = System.currentTimeMillis();
+
+            best_size = currentSize;
+            best_rmsd = currentRmsd;
+            best_incorrectlyAlignedResiduesRatio = incorrectlyAlignedResiduesRatio;
+            best_specimen = (Specimen) population.get(0).clone();
+            updatePopulationsNumber(true);
+            // Is it an improvement to the global result?
+            final BestAlignment current = best.get();
+            if (current.size < best_size
+                || (best_rmsd < current.rmsd && current.size == best_size)) {
+              // Update global best result.
+              final BestAlignment replaced = publishBest(
+                  new BestAlignment(best_size, best_rmsd, best_incorrectlyAlignedResiduesRatio,
+                      (Specimen) best_specimen.clone()),
+                  this::isBetterAlignment);
+              if (replaced != null) {
+                updateStopTime(replaced.size < best_size);
+              }
+              if (((best.get().size
+                      == Math.min(referenceStructure.size(), targetStructure.size()))
+                      /*&& (Double.compare(bestAlignmentRMSD,rmsdLimit) <= 0)*/)) {
+                terminate = true;
+                break;
+              }
+            }
+
+          } else {
+            updatePopulationsNumber(false);
+          }
+
+          if (((best_size == Math.min(referenceStructure.size(), targetStructure.size()))
+                  /*&& (Double.compare(best_rmsd,rmsdLimit) <= 0)*/)) {
+            terminate = true;
+            break;
+          }
+        }
+      }
+
+
+      if (publishBest(new BestAlignment(best_size, best_rmsd,
+                          best_incorrectlyAlignedResiduesRatio, (Specimen) best_specimen.clone()),
+              this::isBetterFinalAlignment)
+          != null) {
+        System.err.println(best_size + " " + best_rmsd);
+      }
+      final BestAlignment current = best.get();
+      if (((current.size == Math.min(referenceStructure.size(), targetStructure.size()))
+              && (Double.compare(current.rmsd, rmsdLimit) <= 0))
+          || (numberOfPopulationsWithoutImprovement.sum() > 300)) {
+        terminate = true;
+      }
+    }
+  }
+
+  // Island model. Sends the best specimens of the population to other threads and replaces the
+  // worst ones with specimens received from them.
+  private void migrate(final int island, final Population population) {
+    migrationChannel.send(island, population, config.migrationSize);
+    final ArrayList<Specimen> immigrants = migrationChannel.receive(island);
+    if (immigrants.isEmpty()) {
+      return;
+    }
+    // Immigrants replace the worst natives, so they cannot evict each other.
+    final SpecimenComparator comparator = new SpecimenComparator(rmsdLimit);
+    population.sort(comparator);
+    final LinkedHashSet<Specimen> accepted = new LinkedHashSet<Specimen>();
+    for (Specimen immigrant : immigrants) {
+      if (!population.contains(immigrant)) {
+        accepted.add(immigrant);
+      }
+    }
+    final int evicted = Math.min(population.size(),
+        population.size() + accepted.size() - config.populationSize);
+    for (int i = 0; i < evicted; i++) {
+      population.removeLast();
+    }
+    for (Specimen immigrant : accepted) {
+      population.add(immigrant);
+    }
+    population.sort(comparator);
+  }
+
+  private final void updatePopulationsNumber(final boolean init) {
+    if (init) {
+      numberOfPopulationsWithoutImprovement.reset();
+    } else {
+      numberOfPopulationsWithoutImprovement.increment();
     }
   }
 }
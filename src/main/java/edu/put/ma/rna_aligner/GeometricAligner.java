@@ -3,10 +3,12 @@ package edu.put.ma.rna_aligner;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.util.Precision;
 import org.slf4j.Logger;
@@ -16,62 +18,153 @@ public class GeometricAligner {
   private static final Logger LOGGER = LoggerFactory.getLogger(GeometricAligner.class);
 
   private final AlignerConfig config;
+  // Reference side precomputed once, possibly shared with other alignments.
+  private final ReferenceIndex referenceIndex;
   private final ArrayList<Nucleotide> referenceStructure;
   private final ArrayList<Nucleotide> targetStructure;
+  // Primitive copies of all representatives, nucleotide after nucleotide.
+  private final CoordinatesBlock referenceBlock;
+  private final CoordinatesBlock targetBlock;
+  private final int representatives;
   private long startTime;
 
-  private Semaphore semaphore = new Semaphore(1);
-  private ArrayList<Integer> bestChainReference = new ArrayList<Integer>();
-  private ArrayList<Integer> bestChainTarget = new ArrayList<Integer>();
-  private double bestRmsd = Double.MAX_VALUE;
+  private final AtomicReference<BestChain> best = new AtomicReference<BestChain>(
+      new BestChain(new ArrayList<Integer>(), new ArrayList<Integer>(), Double.MAX_VALUE));
   private boolean isSequenceDependent;
   private double rmsdLimit;
   private long globalStart = System.currentTimeMillis();
-  private long stopTime;
+  private final AtomicLong stopTime = new AtomicLong();
   private boolean respectOrder = false;
 
   private boolean createPopulation = false;
   private int populationSize = 0;
+  private SpecimenFitness populationFitness;
   ArrayList<Specimen> populationPool = new ArrayList<Specimen>();
 
+  // Target nucleotides sorted by distance to each target nucleotide.
+  private DistanceIndex targetDistanceIndex;
+  // Target pairs indexed by their distance profile.
+  private PairDistanceIndex targetPairIndex;
+
+  // Buffers of the pair and triple phase workers, indexed by the worker slot. Created once per
+  // calculate() and reused by all batches.
+  private PairScratch[] pairScratch;
+  private TripleScratch[] tripleScratch;
+
+  // Pool used by all parallel phases. Created in calculate() unless provided by the caller.
+  private ForkJoinPool threadPool;
+  // Distance matrix provided by the caller, null if it has to be calculated.
+  private final DistanceMatrix precomputedTargetDistances;
+
   GeometricAligner(final AlignerConfig _config, final ArrayList<Nucleotide> _referenceStructure,
       final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
       final double _rmsdLimit, final boolean _respectOrder) {
+    this(_config, _referenceStructure, _targetStructure, _isSequenceDependent, _rmsdLimit,
+        _respectOrder, null);
+  }
+
+  // Pool is shared with the caller and is not shut down by the aligner.
+  GeometricAligner(final AlignerConfig _config, final ArrayList<Nucleotide> _referenceStructure,
+      final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
+      final double _rmsdLimit, final boolean _respectOrder, final ForkJoinPool _threadPool) {
+    this(_config, _referenceStructure, _targetStructure, _isSequenceDependent, _rmsdLimit,
+        _respectOrder, _threadPool, null, null);
+  }
+
+  // Distance matrices of both structures are reused (e.g. cached between jobs), not modified.
+  GeometricAligner(final AlignerConfig _config, final ArrayList<Nucleotide> _referenceStructure,
+      final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
+      final double _rmsdLimit, final boolean _respectOrder, final ForkJoinPool _threadPool,
+      final DistanceMatrix _referenceDistances, final DistanceMatrix _targetDistances) {
+    this(_config, new ReferenceIndex(_referenceStructure, _referenceDistances), _targetStructure,
+        _isSequenceDependent, _rmsdLimit, _respectOrder, _threadPool, _targetDistances);
+  }
+
+  // Reference index is shared (e.g. one reference aligned against many models), not modified.
+  GeometricAligner(final AlignerConfig _config, final ReferenceIndex _referenceIndex,
+      final ArrayList<Nucleotide> _targetStructure, final boolean _isSequenceDependent,
+      final double _rmsdLimit, final boolean _respectOrder, final ForkJoinPool _threadPool,
+      final DistanceMatrix _targetDistances) {
     super();
     config = _config;
-    referenceStructure = _referenceStructure;
+    threadPool = _threadPool;
+    referenceIndex = _referenceIndex;
+    precomputedTargetDistances = _targetDistances;
+    referenceStructure = referenceIndex.structure;
     targetStructure = _targetStructure;
+    referenceBlock = referenceIndex.block;
+    targetBlock = Nucleotide.NucleotidesToBlock(targetStructure);
+    representatives = referenceIndex.representatives;
     isSequenceDependent = _isSequenceDependent;
     respectOrder = _respectOrder;
     //if ((isSequenceDependent) && (referenceStructure.size() != targetStructure.size()))
     //  isSequenceDependent = !isSequenceDependent;
     rmsdLimit = _rmsdLimit;
-    stopTime = (long) ((globalStart + (1000 * config.returnTime * 0.25)));
+    stopTime.set((long) ((globalStart + (1000 * config.returnTime * 0.25))));
+  }
+
+  // Immutable snapshot of the best alignment found so far. Threads replace it as a whole with CAS
+  // so they only contend when they actually improve the result. Chains are never modified after
+  // being published.
+  private static final class BestChain {
+    final ArrayList<Integer> chainReference;
+    final ArrayList<Integer> chainTarget;
+    final double rmsd;
+
+    BestChain(final ArrayList<Integer> _chainReference, final ArrayList<Integer> _chainTarget,
+        final double _rmsd) {
+      chainReference = _chainReference;
+      chainTarget = _chainTarget;
+      rmsd = _rmsd;
+    }
+
+    boolean isBetterThan(final BestChain rhs) {
+      return rhs.isImprovedBy(chainReference.size(), rmsd);
+    }
+
+    boolean isImprovedBy(int size, double _rmsd) {
+      return chainReference.size() < size || (chainReference.size() == size && rmsd > _rmsd);
+    }
   }
 
   public AlignerOutput calculate() {
+    final boolean ownsThreadPool = (threadPool == null);
+    if (ownsThreadPool) {
+      threadPool = new ForkJoinPool(config.threads);
+    }
+    try {
+      return CalculateAllBatches();
+    } finally {
+      if (ownsThreadPool) {
+        threadPool.shutdown();
+        threadPool = null;
+      }
+    }
+  }
+
+  private AlignerOutput CalculateAllBatches() {
     startTime = System.currentTimeMillis();
     // Precompute phase.
     // Calculate Distances: Computational: n^2 + m^2 | Memory n^2 + m^2
-    final Dist[][] referenceDistances = CalulateDistances(referenceStructure);
-    final Dist[][] targetDistances = CalulateDistances(targetStructure);
-
-    // Create reference RNA Pairs: Computational: n^2 | Memory n^2
+    final DistanceMatrix referenceDistances = referenceIndex.distances;
+    final DistanceMatrix targetDistances = (precomputedTargetDistances != null)
+        ? precomputedTargetDistances : new DistanceMatrix(targetStructure);
+    targetDistanceIndex = new DistanceIndex(targetDistances);
+    // Cells match the query radius of the last (widest) pair batch.
+    targetPairIndex = new PairDistanceIndex(
+        targetDistances, Math.sqrt(Math.pow(config.pairRmsdLimit * 2, 2) * representatives));
+    pairScratch = new PairScratch[config.threads];
+    tripleScratch = new TripleScratch[config.threads];
+
+    // Reference RNA Pairs (from the index): Computational: n^2 | Memory n^2
+    // Other shards are searched by other workers.
+    final ArrayList<NData> referencePairs =
+        referenceIndex.shuffledPairs(config.shardIndex, config.shardCount);
     ArrayList<ArrayList<NData>> validPairs = new ArrayList<ArrayList<NData>>();
-    ArrayList<NData> referencePairsTmp = new ArrayList<NData>();
-    referencePairsTmp.ensureCapacity(
-        (referenceStructure.size() - 1) * (referenceStructure.size() - 2) / 2);
-    validPairs.ensureCapacity(
-        (referenceStructure.size() - 1) * (referenceStructure.size() - 2) / 2);
-    int id = 0;
-    for (int i = 0; i < referenceStructure.size(); i++) {
-      for (int j = i + 1; j < referenceStructure.size(); j++) {
-        referencePairsTmp.add(new NData(i, j, id++));
-        validPairs.add(new ArrayList<NData>());
-      }
+    validPairs.ensureCapacity(referenceIndex.pairCount());
+    for (int id = 0; id < referenceIndex.pairCount(); id++) {
+      validPairs.add(new ArrayList<NData>());
     }
-    Collections.shuffle(referencePairsTmp);
-    final ArrayList<NData> referencePairs = referencePairsTmp;
 
     for (int tripleBatch = 1; tripleBatch <= 2; tripleBatch++) {
       for (int batch = 1; batch <= config.dualCoreBatches; batch++) {
@@ -82,38 +175,41 @@ public class GeometricAligner {
         CalculatePairCoresBatch(
             validPairs, referencePairs, referenceDistances, targetDistances, batch);
 
-        // Get max valid pair candidates for validPairs.
-        int maxValidCandidates = 0;
-        for (final ArrayList<NData> valid : validPairs) {
-          maxValidCandidates = Math.max(maxValidCandidates, valid.size());
-        }
-
         // Result stored in the global variable.
-        FindTripleCoresAndCalculate(referenceDistances, targetDistances, referencePairs, validPairs,
-            maxValidCandidates, tripleBatch);
+        FindTripleCoresAndCalculate(
+            referenceDistances, targetDistances, referencePairs, validPairs, tripleBatch);
       }
     }
     return CreateAlignerOutput();
   }
 
   public ArrayList<Specimen> createPopulation(int populationSize) {
+    return createPopulation(
+        populationSize, new SpecimenFitness(referenceStructure, targetStructure));
+  }
+
+  // Specimens share the fitness evaluator of the caller.
+  public ArrayList<Specimen> createPopulation(int populationSize, final SpecimenFitness fitness) {
     this.populationSize = populationSize;
+    populationFitness = fitness;
     createPopulation = true;
     calculate();
     return populationPool;
   }
 
-  private void updateStopTime(Boolean resultImprovement) {
+  private void updateStopTime(Boolean resultImprovement, final BestChain result) {
     long now = System.currentTimeMillis();
-    if (bestChainReference.size() == referenceStructure.size() || bestChainTarget.size() == targetStructure.size()) {
-      long timeBuffer = stopTime - now;
-      // 1s left, just end it. If more than 5s, shorten it.
-      if (timeBuffer < 1000) {
-        timeBuffer = 0;
-      } else if (timeBuffer > 5000) {
-        timeBuffer = 5000;
-      }
-      stopTime = now + (long) (timeBuffer * 0.95);
+    if (result.chainReference.size() == referenceStructure.size() || result.chainTarget.size() == targetStructure.size()) {
+      stopTime.updateAndGet(previous -> {
+        long timeBuffer = previous - now;
+        // 1s left, just end it. If more than 5s, shorten it.
+        if (timeBuffer < 1000) {
+          timeBuffer = 0;
+        } else if (timeBuffer > 5000) {
+          timeBuffer = 5000;
+        }
+        return now + (long) (timeBuffer * 0.95);
+      });
       return;
     }
     
@@ -128,21 +224,25 @@ public class GeometricAligner {
       timeImprovement =
           (long) Math.max(timeLeft * config.imprRmsdPercentage, config.imprRmsdFlat * 1000);
     }
-    long timeBuffer = stopTime + timeImprovement - now;
-    if (timeBuffer < config.waitBufferFlat) {
-      timeBuffer = config.waitBufferFlat;
-    } else {
-      timeBuffer = (long) Math.min(timeBuffer, timeLeft * config.waitBufferPercentage);
-    }
-    stopTime = (long) Math.min(now + timeBuffer, globalStart + (config.returnTime * 1000));
+    final long improvement = timeImprovement;
+    stopTime.updateAndGet(previous -> {
+      long timeBuffer = previous + improvement - now;
+      if (timeBuffer < config.waitBufferFlat) {
+        timeBuffer = config.waitBufferFlat;
+      } else {
+        timeBuffer = (long) Math.min(timeBuffer, timeLeft * config.waitBufferPercentage);
+      }
+      return (long) Math.min(now + timeBuffer, globalStart + (config.returnTime * 1000));
+    });
   }
 
   private boolean ShouldTerminate() {
-    return (((config.returnTime * 1000 - (System.currentTimeMillis() - globalStart)) < 0) || (bestChainReference.size() > 0 && System.currentTimeMillis() > stopTime)
+    final BestChain result = best.get();
+    return (((config.returnTime * 1000 - (System.currentTimeMillis() - globalStart)) < 0) || (result.chainReference.size() > 0 && System.currentTimeMillis() > stopTime.get())
         // Do not end after max chain. Compute for a while more but not a lot. Decrease time with each iteration.
         // || (bestChainReference.size() == referenceStructure.size() || bestChainTarget.size() == targetStructure.size())
         || (populationPool.size() > populationSize
-            || (createPopulation && (bestChainReference.size() == referenceStructure.size() || bestChainTarget.size() == targetStructure.size())
+            || (createPopulation && (result.chainReference.size() == referenceStructure.size() || result.chainTarget.size() == targetStructure.size())
                 && populationPool.size() > config.threads * 3)));
   }
 
@@ -160,10 +260,11 @@ public class GeometricAligner {
     for (int i = 0; i < referenceStructure.size(); i++) {
       sortedReference.set(i, i);
     }
+    final BestChain result = best.get();
     int count = 0;
-    for (int i = 0; i < bestChainReference.size(); i++) {
-      final int referenceIndex = bestChainReference.get(i).intValue();
-      sortedTarget.set(referenceIndex, bestChainTarget.get(i));
+    for (int i = 0; i < result.chainReference.size(); i++) {
+      final int referenceIndex = result.chainReference.get(i).intValue();
+      sortedTarget.set(referenceIndex, result.chainTarget.get(i));
       count++;
     }
 
@@ -178,85 +279,75 @@ public class GeometricAligner {
             Nucleotide.NucleotidesToList(nucleotidesTarget));
 
     return new AlignerOutput(count, sortedReference, sortedTarget, superimposer,
-        System.currentTimeMillis() - startTime, bestRmsd);
-  }
-
-  private Dist[][] CalulateDistances(final ArrayList<Nucleotide> nucleotides) {
-    //long st = System.currentTimeMillis();
-    Dist[][] distances = new Dist[nucleotides.size()][nucleotides.size()];
-    //long mid = System.currentTimeMillis();
-    for (int i = 0; i < nucleotides.size(); i++) {
-      for (int j = i + 1; j < nucleotides.size(); j++) {
-        distances[i][j] = new Dist(nucleotides.get(i), nucleotides.get(j));
-        distances[j][i] = new Dist(distances[i][j].distances);
-      }
-    }
-    /*
-    long end = System.currentTimeMillis();
-    System.out.println("CalculateDistandes:\n" +
-        "\tCreate Matrix: " + (mid - st) + "ms" +
-        "\tFill Matrix:   " + (end - mid) + "ms" +
-        "\tEverything:    " + (end - st) + "ms");
-    */
-    return distances;
+        System.currentTimeMillis() - startTime, result.rmsd);
   }
 
   // Search whole result space for cores with 2 nucleotides with RMSD within batch.
   private void CalculatePairCoresBatch(ArrayList<ArrayList<NData>> validPairs,
-      final ArrayList<NData> referencePairs, final Dist[][] referenceDistances,
-      final Dist[][] targetDistances, int batch) {
+      final ArrayList<NData> referencePairs, final DistanceMatrix referenceDistances,
+      final DistanceMatrix targetDistances, int batch) {
     final double minimumRmsd =
         (Double.valueOf((batch - 1)) / Double.valueOf(config.dualCoreBatches))
         * config.pairRmsdLimit;
     final double maximumRmsd =
         (Double.valueOf(batch) / Double.valueOf(config.dualCoreBatches)) * config.pairRmsdLimit;
 
-    ForkJoinPool threadPool = null;
-
+    // Each thread takes next reference pair and keeps its own buffers.
+    final AtomicInteger nextPair = new AtomicInteger(0);
     try {
-      threadPool = new ForkJoinPool(config.threads);
-
       threadPool
-          .submit(() -> referencePairs.stream().parallel().forEach(ndata -> {
-            if (ShouldTerminate()) {
-              return;
+          .submit(() -> IntStream.range(0, config.threads).parallel().forEach(thread -> {
+            if (pairScratch[thread] == null) {
+              pairScratch[thread] = new PairScratch(representatives);
+            }
+            final PairScratch scratch = pairScratch[thread];
+            final CoordinatesBlock referenceAtoms = scratch.pairReference;
+
+            for (int pair = nextPair.getAndIncrement(); pair < referencePairs.size();
+                 pair = nextPair.getAndIncrement()) {
+              if (ShouldTerminate()) {
+                return;
+              }
+              final NData ndata = referencePairs.get(pair);
+              NucleotidesToAtoms(referenceAtoms, ndata.index1, ndata.index2, referenceBlock);
+              // Calculate pair candidates.
+              final ArrayList<NData> pairCandidates =
+                  CalculatePairCandidates(ndata, referenceDistances, targetDistances,
+                      minimumRmsd, maximumRmsd, scratch);
+
+              Collections.sort(pairCandidates, new NDataComparator());
+              // Here rmsd is pair index!
+              validPairs.set((int) ndata.rmsd, pairCandidates);
             }
-            ArrayList<Coordinates> referenceAtoms = new ArrayList<Coordinates>(
-                Arrays.asList(new Coordinates[targetStructure.get(0).representatives.size() * 2]));
-            NucleotidesToAtoms(referenceAtoms, ndata.index1, ndata.index2, referenceStructure);
-            // Calculate pair candidates.
-            final ArrayList<NData> pairCandidates =
-                CalculatePairCandidates(ndata, referenceDistances[ndata.index1][ndata.index2],
-                    referenceAtoms, targetDistances, minimumRmsd, maximumRmsd);
-
-            Collections.sort(pairCandidates, new NDataComparator());
-            // Here rmsd is pair index!
-            validPairs.set((int) ndata.rmsd, pairCandidates);
           }))
           .get();
     } catch (InterruptedException | ExecutionException e) {
       throw new RuntimeException(e);
-    } finally {
-      if (threadPool != null) {
-        threadPool.shutdown();
-      }
     }
   }
 
-  private ArrayList<NData> CalculatePairCandidates(final NData ndata, final Dist referenceDistance,
-      final ArrayList<Coordinates> referenceAtoms,
-      final Dist[][] targetDistances, final double minimumRmsd, final double maximumRmsd) {
+  // Reference pair atoms must be already in 'scratch.pairReference'.
+  private ArrayList<NData> CalculatePairCandidates(final NData ndata,
+      final DistanceMatrix referenceDistances, final DistanceMatrix targetDistances,
+      final double minimumRmsd, final double maximumRmsd, PairScratch scratch) {
     ArrayList<NData> pairCandidates = new ArrayList<NData>();
 
     final double similarityMax =
-        Math.pow(maximumRmsd * 2, 2) * referenceStructure.get(0).representatives.size();
-    ArrayList<Coordinates> targetAtoms1 = new ArrayList<Coordinates>(
-        Arrays.asList(new Coordinates[targetStructure.get(0).representatives.size() * 2]));
-    ArrayList<Coordinates> targetAtoms2 = new ArrayList<Coordinates>(
-        Arrays.asList(new Coordinates[targetStructure.get(0).representatives.size() * 2]));
-
-      for (int i = 0; i < targetDistances.length; i++) {
-        for (int j = i + 1; j < targetDistances.length; j++) {
+        Math.pow(maximumRmsd * 2, 2) * representatives;
+    final CoordinatesBlock referenceAtoms = scratch.pairReference;
+    final CoordinatesBlock targetAtoms1 = scratch.pairTarget;
+    final CoordinatesBlock targetAtoms2 = scratch.pairTargetReversed;
+    final double[] correlation = scratch.correlation;
+    final NeighbourBuffer neighbours = scratch.pairNeighbours;
+
+    // Only target pairs with distance profile close enough to the reference one.
+    final int referencePair = referenceDistances.pair(ndata.index1, ndata.index2);
+    final int count = targetPairIndex.query(
+        referenceDistances, referencePair, Math.sqrt(similarityMax) + 1e-9, neighbours);
+
+      for (int n = 0; n < count; n++) {
+        final int i = targetPairIndex.first[neighbours.get(n)];
+        final int j = targetPairIndex.second[neighbours.get(n)];
          final boolean ij = ((StringUtils.equalsIgnoreCase(targetStructure.get(i).getCode(),
              referenceStructure.get(ndata.index1).getCode())) &&
             				(StringUtils.equalsIgnoreCase(targetStructure.get(j).getCode(),
@@ -268,78 +359,81 @@ public class GeometricAligner {
 
          if ((!isSequenceDependent || (ij || ji))) {
 
-            final double similarity = Dist.Similarity(referenceDistance, targetDistances[i][j]);
+            final double similarity = Dist.Similarity(
+                referenceDistances, referencePair, targetDistances, neighbours.get(n));
             // Here rmsdLimit != similarity metric as some calculations were omitted from calculations
             // for speed and moved to similarityMax variable.
             if (similarity <= similarityMax) {
-              NucleotidesToAtoms(targetAtoms1, i, j, targetStructure);
+              NucleotidesToAtoms(targetAtoms1, i, j, targetBlock);
               // Calculate real RMSD with best rotation and shift.
-              // Does not change targetAtoms.
-              Superimposer superimposer = Calculations.FitForRMSD(referenceAtoms, targetAtoms1);
+              // Only the RMSD is needed, pair cores are never moved with their superimposer.
               final double rmsd =
-                  Calculations.CalculateRMSD(referenceAtoms, targetAtoms1, superimposer);
+                  Calculations.CalculateMinimalRMSD(referenceAtoms, targetAtoms1, correlation);
 
               if (rmsd >= minimumRmsd && rmsd <= maximumRmsd && (!isSequenceDependent || ij)) {
-                pairCandidates.add(new NData(i, j, rmsd, superimposer));
+                pairCandidates.add(new NData(i, j, rmsd));
               }
 
               // RESPECT CHAIN ORDER! DO NOT ADD j i is guaranteed to be j > i
               if (!respectOrder) {
-                NucleotidesToAtoms(targetAtoms2, j, i, targetStructure);
+                NucleotidesToAtoms(targetAtoms2, j, i, targetBlock);
                 // Calculate real RMSD with best rotation and shift.
-                // Does not change targetAtoms.
-                superimposer = Calculations.FitForRMSD(referenceAtoms, targetAtoms2);
                 final double rmsd2 =
-                    Calculations.CalculateRMSD(referenceAtoms, targetAtoms2, superimposer);
+                    Calculations.CalculateMinimalRMSD(referenceAtoms, targetAtoms2, correlation);
 
                 if (rmsd2 >= minimumRmsd && rmsd2 <= maximumRmsd && (!isSequenceDependent || ji)) {
-                  pairCandidates.add(new NData(j, i, rmsd2, superimposer));
+                  pairCandidates.add(new NData(j, i, rmsd2));
                 }
               }
             }
           }
-        }
       }
     return pairCandidates;
   }
 
-  // Does not create new Atoms structures, just references to the original structure.
-  private void NucleotidesToAtoms(ArrayList<Coordinates> atoms, int first, int second,
-      final ArrayList<Nucleotide> nucleotides) {
-    int index = 0;
-    final Nucleotide nucl1 = nucleotides.get(first);
-    for (int i = 0; i < nucl1.representatives.size(); i++, index++) {
-      atoms.set(index, nucl1.representatives.get(i));
-    }
-    final Nucleotide nucl2 = nucleotides.get(second);
-    for (int i = 0; i < nucl2.representatives.size(); i++, index++) {
-      atoms.set(index, nucl2.representatives.get(i));
-    }
+  // Copies representatives of two nucleotides from the structure block into the atoms buffer.
+  private void NucleotidesToAtoms(CoordinatesBlock atoms, int first, int second,
+      final CoordinatesBlock structure) {
+    atoms.copy(structure, first * representatives, 0, representatives);
+    atoms.copy(structure, second * representatives, representatives, representatives);
   }
 
-  // Does not create new Atoms structures, just references to the original structure.
+  // Copies representatives of the third nucleotide into the last part of the atoms buffer.
   private void NucleotidesToAtoms(
-      ArrayList<Coordinates> atoms, int third, final ArrayList<Nucleotide> nucleotides) {
-    final Nucleotide nucl3 = nucleotides.get(third);
-    int index = nucl3.representatives.size() * 2;
-    for (int i = 0; i < nucl3.representatives.size(); i++, index++) {
-      atoms.set(index, nucl3.representatives.get(i));
-    }
+      CoordinatesBlock atoms, int third, final CoordinatesBlock structure) {
+    atoms.copy(structure, third * representatives, representatives * 2, representatives);
   }
 
-  private ArrayList<NData> FindTriplesCores(final Dist[][] referenceDistances,
-      final Dist[][] targetDistances, ArrayList<Coordinates> referenceAtoms,
-      ArrayList<Coordinates> targetAtoms, NData candidate, final NData ndata, final int batch) {
-    ArrayList<NData> triplesCandidates = new ArrayList<NData>();
-    Superimposer superimposer = null;
+  private ArrayList<NData> FindTriplesCores(final DistanceMatrix referenceDistances,
+      final DistanceMatrix targetDistances, NData candidate, final NData ndata, final int batch,
+      TripleScratch scratch) {
+    final CoordinatesBlock referenceAtoms = scratch.tripleReference;
+    final CoordinatesBlock targetAtoms = scratch.tripleTarget;
+    ArrayList<NData> triplesCandidates = scratch.triplesCandidates;
+    triplesCandidates.clear();
+    // Refitted in place for every checked core, copied only when the core is accepted.
+    final Superimposer superimposer = scratch.superimposer;
+    final double[] correlation = scratch.correlation;
 
     final double similarityMax =
-        Math.pow(config.tripleRmsdLimit * 3, 2) * referenceStructure.get(0).representatives.size();
+        Math.pow(config.tripleRmsdLimit * 3, 2) * representatives;
+    // Similarity of every representative is at least 1.5 * (dist1 - dist2)^2 so the distance
+    // between t.nt1 and t.nt3 must be close to the distance between r.nt1 and r.nt3. Only target
+    // nucleotides within that distance shell are checked.
+    final int referencePair = referenceDistances.pair(ndata.index1, ndata.index2);
+    final int targetPair = targetDistances.pair(candidate.index1, candidate.index2);
+    final double pairDifference = Math.abs(
+        referenceDistances.get(referencePair, 0) - targetDistances.get(targetPair, 0));
+    final double shellTolerance = pairDifference + Math.sqrt(similarityMax / 1.5) + 1e-9;
+    final int[] neighbours = scratch.neighbours;
 
       for (int i = 0; i < referenceStructure.size(); i++) {
         if (i != ndata.index1 && i != ndata.index2) {
+          final int count = targetDistanceIndex.query(candidate.index1,
+              referenceDistances.get(ndata.index1, i, 0), shellTolerance, neighbours);
           // Fill last (third) nucleotide worth of atoms.
-          for (int j = 0; j < targetStructure.size(); j++) {
+          for (int n = 0; n < count; n++) {
+            final int j = neighbours[n];
             if (j != candidate.index1 && j != candidate.index2 &&
             (!isSequenceDependent || ((StringUtils.equalsIgnoreCase(targetStructure.get(j).getCode(),
              referenceStructure.get(i).getCode()))))) {
@@ -354,16 +448,14 @@ public class GeometricAligner {
                   // nt3 is last aka largest
                   // This means t.nt3 (j) MUST be bigger than t.nt3
                   if (j < candidate.index2) {
-                    // Incorrect. Skip. First move j to at least t.nt2 as all subsequent are incorrect.
-                    j = candidate.index2;
+                    // Incorrect. Skip until j is at least t.nt2.
                     continue;
                   }
                 } else if (i > ndata.index1) { 
                   // nt3 is second aka in between
                   // This meand t.nt3 (j) must be in between t.nt1 and t.nt2
                   if (j < candidate.index1) {
-                    // Incorrect. Skip. First move j to at least t.nt1 as all subsequent are incorrect.
-                    j = candidate.index1;
+                    // Incorrect. Skip until j is at least t.nt1.
                     continue;
                   }
                   if (j > candidate.index2) {
@@ -383,26 +475,30 @@ public class GeometricAligner {
 
               // Fill last (third) nucleotide worth of atoms.
               final double similarity =
-                  Dist.Similarity(referenceDistances[ndata.index1][ndata.index2],
-                      targetDistances[candidate.index1][candidate.index2],
-                      referenceDistances[ndata.index1][i], targetDistances[candidate.index1][j],
-                      referenceDistances[ndata.index2][i], targetDistances[candidate.index2][j]);
+                  Dist.Similarity(referenceDistances, targetDistances, referencePair, targetPair,
+                      referenceDistances.pair(ndata.index1, i),
+                      targetDistances.pair(candidate.index1, j),
+                      referenceDistances.pair(ndata.index2, i),
+                      targetDistances.pair(candidate.index2, j));
               if (similarity < similarityMax) {
-                NucleotidesToAtoms(referenceAtoms, i, referenceStructure);
-                NucleotidesToAtoms(targetAtoms, j, targetStructure);
-                superimposer = Calculations.FitforTripleRMSD(referenceAtoms, targetAtoms);
+                NucleotidesToAtoms(referenceAtoms, i, referenceBlock);
+                NucleotidesToAtoms(targetAtoms, j, targetBlock);
+                Calculations.FitforTripleRMSD(referenceAtoms, targetAtoms,
+                    scratch.referenceCentroids, scratch.targetCentroids, superimposer,
+                    correlation);
                 double miniRmsd =
                     Calculations.CalculateRMSD(referenceAtoms, targetAtoms, superimposer);
 
                 if (miniRmsd < config.tripleRmsdLimit) {
-                  triplesCandidates.add(new NData(i, j, miniRmsd, superimposer));
+                  triplesCandidates.add(
+                      new NData(i, j, miniRmsd, new Superimposer(superimposer)));
                 } else if (miniRmsd < config.tripleRmsdLimit * 1.15) {
-                  superimposer = Calculations.FitForRMSD(referenceAtoms, targetAtoms);
-                  final ArrayList<Coordinates> fitTargetAtoms =
-                      Calculations.MoveAtomsForRMSD(targetAtoms, superimposer);
-                  double rmsd = Calculations.CalculateRMSD(referenceAtoms, fitTargetAtoms);
+                  // Superimposer is built only when the core is accepted.
+                  double rmsd = Calculations.CalculateMinimalRMSD(
+                      referenceAtoms, targetAtoms, correlation);
                   if (rmsd < config.tripleRmsdLimit) {
-                    triplesCandidates.add(new NData(i, j, rmsd, superimposer));
+                    triplesCandidates.add(new NData(i, j, rmsd,
+                        Calculations.FitForRMSD(referenceAtoms, targetAtoms)));
                   }
                 }
               }
@@ -446,81 +542,88 @@ public class GeometricAligner {
     return triplesCandidatesBatch;
   }
 
-  private void FindTripleCoresAndCalculate(final Dist[][] referenceDistances,
-      final Dist[][] targetDistances, final ArrayList<NData> referencePairs,
-      final ArrayList<ArrayList<NData>> validPairs, final int maxValidCandidates, final int batch) {
+  private void FindTripleCoresAndCalculate(final DistanceMatrix referenceDistances,
+      final DistanceMatrix targetDistances, final ArrayList<NData> referencePairs,
+      final ArrayList<ArrayList<NData>> validPairs, final int batch) {
+    // Flatten (reference pair, candidate) space into single tasks. Here index1 is the position in
+    // referencePairs, index2 is the candidate position and rmsd is the candidate pair RMSD.
+    ArrayList<NData> tasks = new ArrayList<NData>();
+    for (int p = 0; p < referencePairs.size(); p++) {
+      // validPairs rmsd value represent nucleotide index.
+      final ArrayList<NData> candidates = validPairs.get((int) referencePairs.get(p).rmsd);
+      for (int c = 0; c < candidates.size(); c++) {
+        // All possible cores were calculated during first batch.
+        if (candidates.get(c).rmsd >= 0.0) {
+          tasks.add(new NData(p, c, candidates.get(c).rmsd));
+        }
+      }
+    }
     // Check candidates from the first ones (best dual RMSD).
-    // Parallelism can be moved one step up (here)
-    for (int index = 0; index < maxValidCandidates; index++) {
-      ForkJoinPool threadPool = null;
-      final int finalIndex = index;
-      try {
-        threadPool = new ForkJoinPool(config.threads);
-
-        threadPool
-            .submit(() -> referencePairs.stream().parallel().forEach(ndata -> {
-              if (ShouldTerminate()) {
-                return;
-              }
-
-              // validPairs rmsd value represent nucleotide index.
-              final ArrayList<NData> candidates = validPairs.get((int) ndata.rmsd);
+    Collections.sort(tasks, Collections.reverseOrder(new NDataComparator()));
 
-              if (candidates.size() <= finalIndex) {
-                return;
-              }
-
-              NData candidate = candidates.get(finalIndex);
+    // Each thread takes next task as soon as it is done with the previous one. There is no
+    // synchronization between tasks so uneven candidate lists do not leave threads idle.
+    final AtomicInteger nextTask = new AtomicInteger(0);
+    try {
+      threadPool
+          .submit(() -> IntStream.range(0, config.threads).parallel().forEach(thread -> {
+            if (tripleScratch[thread] == null) {
+              tripleScratch[thread] = new TripleScratch(
+                  representatives, referenceStructure.size(), targetStructure.size());
+            }
+            final TripleScratch scratch = tripleScratch[thread];
 
-              // All possible cores were calculated during first batch.
-              if (candidate.rmsd < 0.0) {
+            for (int task = nextTask.getAndIncrement(); task < tasks.size();
+                 task = nextTask.getAndIncrement()) {
+              if (ShouldTerminate()) {
                 return;
               }
+              final NData ndata = referencePairs.get(tasks.get(task).index1);
+              final NData candidate =
+                  validPairs.get((int) ndata.rmsd).get(tasks.get(task).index2);
+              FindTripleCoresAndCalculate(
+                  referenceDistances, targetDistances, ndata, candidate, batch, scratch);
+            }
+          }))
+          .get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-              ArrayList<Coordinates> referenceAtoms = new ArrayList<Coordinates>(Arrays.asList(
-                  new Coordinates[targetStructure.get(0).representatives.size() * 3]));
-              ArrayList<Coordinates> targetAtoms = new ArrayList<Coordinates>(Arrays.asList(
-                  new Coordinates[targetStructure.get(0).representatives.size() * 3]));
-
-              // Filled 2 nucleotides worth of Atoms
-              NucleotidesToAtoms(referenceAtoms, ndata.index1, ndata.index2, referenceStructure);
-              NucleotidesToAtoms(targetAtoms, candidate.index1, candidate.index2, targetStructure);
-
-              // Find tripleCores already batch trimmed.
-              final ArrayList<NData> triplesCoresCandidates = FindTriplesCores(referenceDistances,
-                  targetDistances, referenceAtoms, targetAtoms, candidate, ndata, batch);
-
-              // returns null if ShouldTerminate was true while finding cores.
-              if (triplesCoresCandidates == null) {
-                return;
-              }
+  private void FindTripleCoresAndCalculate(final DistanceMatrix referenceDistances,
+      final DistanceMatrix targetDistances, final NData ndata, NData candidate, final int batch,
+      TripleScratch scratch) {
+    final CoordinatesBlock referenceAtoms = scratch.tripleReference;
+    final CoordinatesBlock targetAtoms = scratch.tripleTarget;
+    // Filled 2 nucleotides worth of Atoms
+    NucleotidesToAtoms(referenceAtoms, ndata.index1, ndata.index2, referenceBlock);
+    NucleotidesToAtoms(targetAtoms, candidate.index1, candidate.index2, targetBlock);
+
+    // Find tripleCores already batch trimmed.
+    final ArrayList<NData> triplesCoresCandidates = FindTriplesCores(
+        referenceDistances, targetDistances, candidate, ndata, batch, scratch);
+
+    // returns null if ShouldTerminate was true while finding cores.
+    if (triplesCoresCandidates == null) {
+      return;
+    }
 
-              // Find final result from found triple cores.
-              for (final NData tripleCore : triplesCoresCandidates) {
-                NucleotidesToAtoms(referenceAtoms, tripleCore.index1, referenceStructure);
-                NucleotidesToAtoms(targetAtoms, tripleCore.index2, targetStructure);
-                FindFromTriple(referenceAtoms, targetAtoms, ndata, candidate, tripleCore.index1,
-                    tripleCore.index2, tripleCore.superimposer);
-              }
-            }))
-            .get();
-      } catch (InterruptedException | ExecutionException e) {
-        throw new RuntimeException(e);
-      } finally {
-        if (threadPool != null) {
-          threadPool.shutdown();
-        }
-      }
+    // Find final result from found triple cores.
+    for (final NData tripleCore : triplesCoresCandidates) {
+      FindFromTriple(ndata, candidate, tripleCore.index1, tripleCore.index2,
+          tripleCore.superimposer, scratch);
     }
   }
 
-  private void FindFromTriple(final ArrayList<Coordinates> referenceAtoms,
-      final ArrayList<Coordinates> targetAtoms, final NData ndata, final NData candidate,
-      int referenceIndex3, int targetIndex3, final Superimposer superimposer) {
+  private void FindFromTriple(final NData ndata, final NData candidate, int referenceIndex3,
+      int targetIndex3, final Superimposer superimposer, TripleScratch scratch) {
     // Here are all triple nucleotide candidates.
     // Prepare for calculations.
-    ArrayList<Integer> chainReference = new ArrayList<Integer>(referenceStructure.size());
-    ArrayList<Integer> chainTarget = new ArrayList<Integer>(referenceStructure.size());
+    ArrayList<Integer> chainReference = scratch.chainReference;
+    ArrayList<Integer> chainTarget = scratch.chainTarget;
+    chainReference.clear();
+    chainTarget.clear();
     chainReference.add(ndata.index1);
     chainReference.add(ndata.index2);
     chainReference.add(referenceIndex3);
@@ -529,19 +632,9 @@ public class GeometricAligner {
     chainTarget.add(targetIndex3);
 
     // Prepare target structure rotated and shifted to the triple core.
-    ArrayList<Nucleotide> targetStructureMoved = new ArrayList<Nucleotide>(targetStructure.size());
-    for (final Nucleotide res : targetStructure) {
-      targetStructureMoved.add((Nucleotide) res.clone());
-    }
-
-    for (Nucleotide nucl : targetStructureMoved) {
-      for (Coordinates representative : nucl.representatives) {
-        Calculations.rotate(representative, superimposer.getRotation());
-        Calculations.shift(representative, superimposer.getTranslation());
-      }
-    }
+    Calculations.MoveAtoms(targetBlock, scratch.targetMoved, superimposer);
 
-    CalculateTriple(chainReference, chainTarget, targetStructureMoved);
+    CalculateTriple(chainReference, chainTarget, scratch);
   }
 
 
@@ -598,32 +691,32 @@ public class GeometricAligner {
     return nt_left.index2 <= candidate.index2 && nt_right.index2 >= candidate.index2;
   }
 
+  // 'scratch.targetMoved' is the target block moved onto the core, it is moved again on re-shift.
   private void CalculateTriple(ArrayList<Integer> chainReference, ArrayList<Integer> chainTarget,
-      ArrayList<Nucleotide> targetStructureMoved) {
-    ArrayList<Nucleotide> nucleotidesReference =
-        new ArrayList<Nucleotide>(referenceStructure.size());
-    ArrayList<Nucleotide> nucleotidesTarget = new ArrayList<Nucleotide>(referenceStructure.size());
-    HashSet<Integer> usedReference = new HashSet<Integer>();
-    HashSet<Integer> usedTarget = new HashSet<Integer>();
+      TripleScratch scratch) {
+    final CoordinatesBlock targetMoved = scratch.targetMoved;
+    final CandidateQueue candidates = scratch.candidates;
+    candidates.reset();
+    // Optimal superposition of the chain is tracked with running sums, see 'RmsdAccumulator'.
+    final RmsdAccumulator accumulator = scratch.accumulator;
+    accumulator.clear();
     for (int i = 0; i < chainReference.size(); i++) {
-      usedReference.add(chainReference.get(i));
-      usedTarget.add(chainTarget.get(i));
-      nucleotidesReference.add(referenceStructure.get(chainReference.get(i)));
-      nucleotidesTarget.add(targetStructure.get(chainTarget.get(i)));
+      candidates.use(chainReference.get(i), chainTarget.get(i));
+      AddToAccumulator(accumulator, chainReference.get(i), chainTarget.get(i));
     }
 
+    // Sum of squared distances of the chain in the current frame of the moved target. Every
+    // accepted addition increases it by its cost.
+    double rmsdSum = CalculateRmsdSum(chainReference, chainTarget, targetMoved);
 
     // Precompute table with RMSD improvements.
-    ArrayList<NData> precomputedDistances =
-        PrecomputeRmsdChanges(targetStructureMoved, usedReference, usedTarget);
-
-    double rmsdSum = CalculateRmsdSum(chainReference, chainTarget, targetStructureMoved);
-    NData bestCandidates = FindBestCandidate(usedReference, usedTarget, precomputedDistances,
-        rmsdSum);
+    final RmsdChanges precomputedDistances = scratch.changes;
+    PrecomputeRmsdChanges(precomputedDistances, true,
+        MaximumAdditionCost(chainReference.size() + 1, rmsdSum));
+    NData bestCandidates = FindBestCandidate(precomputedDistances, rmsdSum);
 
     while (bestCandidates != null && !IsOrdered(chainReference, chainTarget, bestCandidates)) {
-      bestCandidates = FindBestCandidate(usedReference, usedTarget, precomputedDistances,
-          rmsdSum);  
+      bestCandidates = FindBestCandidate(precomputedDistances, rmsdSum);
     }
 
     int finalShifted = 2;
@@ -631,140 +724,228 @@ public class GeometricAligner {
     while (bestCandidates != null) {
       chainReference.add(bestCandidates.index1);
       chainTarget.add(bestCandidates.index2);
-      usedReference.add(bestCandidates.index1);
-      usedTarget.add(bestCandidates.index2);
-      nucleotidesReference.add(referenceStructure.get(bestCandidates.index1));
-      nucleotidesTarget.add(targetStructure.get(bestCandidates.index2));
+      candidates.use(bestCandidates.index1, bestCandidates.index2);
+      AddToAccumulator(accumulator, bestCandidates.index1, bestCandidates.index2);
+      rmsdSum += bestCandidates.rmsd;
 
       if (chainReference.size() == referenceStructure.size())
         break;
 
-      rmsdSum = CalculateRmsdSum(chainReference, chainTarget, targetStructureMoved);
-
-      bestCandidates = FindBestCandidate(usedReference, usedTarget, precomputedDistances, rmsdSum);
+      bestCandidates = FindBestCandidate(precomputedDistances, rmsdSum);
       while (bestCandidates != null && !IsOrdered(chainReference, chainTarget, bestCandidates)) {
-        bestCandidates = FindBestCandidate(usedReference, usedTarget, precomputedDistances, rmsdSum);
+        bestCandidates = FindBestCandidate(precomputedDistances, rmsdSum);
       }
 
       // Could not find new candidate. Try shifting structure. Only once. Only if close to current
       // max. Try to shift only if current structure is close to the current best. Do not shift
       // clearly bad alignments.
       if (bestCandidates == null && finalShifted != 0
-          && chainReference.size() >= bestChainReference.size() - 3) {
+          && chainReference.size() >= best.get().chainReference.size() - 3) {
         finalShifted--;
 
-        // Shift and move.
-        rmsdSum = CalculateRmsdSum(chainReference, chainTarget, targetStructureMoved);
-
-        final Superimposer superimposer =
-            Calculations.FitForRMSD(Nucleotide.NucleotidesToList(nucleotidesReference),
-                Nucleotide.NucleotidesToList(nucleotidesTarget));
-        targetStructureMoved = new ArrayList<Nucleotide>(targetStructure.size());
-        for (Nucleotide res : targetStructure) {
-          targetStructureMoved.add((Nucleotide) res.clone());
-        }
+        // Shift and move. After optimal superposition the sum is the minimal one.
+        final Superimposer superimposer = accumulator.getSuperimposer();
+        rmsdSum = accumulator.getSquaredDeviations();
+        Calculations.MoveAtoms(targetBlock, targetMoved, superimposer);
 
-        for (Nucleotide nucl : targetStructureMoved) {
-          for (Coordinates representative : nucl.representatives) {
-            Calculations.rotate(representative, superimposer.getRotation());
-            Calculations.shift(representative, superimposer.getTranslation());
-          }
-        }
-
-        precomputedDistances =
-            PrecomputeRmsdChanges(targetStructureMoved, usedReference, usedTarget);
-        bestCandidates = FindBestCandidate(usedReference, usedTarget, precomputedDistances, rmsdSum);
+        PrecomputeRmsdChanges(precomputedDistances, true,
+            MaximumAdditionCost(chainReference.size() + 1, rmsdSum));
+        bestCandidates = FindBestCandidate(precomputedDistances, rmsdSum);
         while (bestCandidates != null && !IsOrdered(chainReference, chainTarget, bestCandidates)) {
-          bestCandidates = FindBestCandidate(usedReference, usedTarget, precomputedDistances, rmsdSum);
+          bestCandidates = FindBestCandidate(precomputedDistances, rmsdSum);
         }
       }
     }
 
-    final double currentRmsd = Precision.round(
-        Calculations.FitAndCalculateRMSD(Nucleotide.NucleotidesToList(nucleotidesReference),
-            Nucleotide.NucleotidesToList(nucleotidesTarget)),
-        3);
+    final double currentRmsd = Precision.round(accumulator.getRmsd(), 3);
 
     // Finished adding nucleotides to the structure.
-    try {
-      final Specimen spec;
-      semaphore.acquire();
-      if (createPopulation) {
-        spec = new Specimen(config, referenceStructure, targetStructure, isSequenceDependent, respectOrder);
-        spec.initialize(chainReference, chainTarget);
+    if (createPopulation) {
+      final Specimen spec = new Specimen(config, referenceStructure, targetStructure,
+          isSequenceDependent, respectOrder, populationFitness);
+      spec.initialize(chainReference, chainTarget);
+      synchronized (populationPool) {
         if (populationSize > populationPool.size()) {
           populationPool.add(spec);
         }
-      } else {
-        spec = null;
       }
-      // New alignment clearly better.
-      final boolean impr = bestChainReference.size() < chainReference.size();
-      if (impr || (bestChainReference.size() == chainReference.size() && bestRmsd > currentRmsd)) {
-        bestRmsd = currentRmsd;
-        bestChainReference = chainReference;
-        bestChainTarget = chainTarget;
-        updateStopTime(impr);
+    }
+    // Chains are scratch buffers, they are copied only when the result is published.
+    BestChain current = best.get();
+    BestChain result = null;
+    while (current.isImprovedBy(chainReference.size(), currentRmsd)) {
+      if (result == null) {
+        result = new BestChain(new ArrayList<Integer>(chainReference),
+            new ArrayList<Integer>(chainTarget), currentRmsd);
       }
-      semaphore.release();
-    } catch (InterruptedException e) {
-      LOGGER.error(e.getMessage(), e);
+      if (best.compareAndSet(current, result)) {
+        // New alignment clearly better.
+        final boolean impr = current.chainReference.size() < chainReference.size();
+        updateStopTime(impr, result);
+        break;
+      }
+      current = best.get();
     }
   }
 
-  private ArrayList<NData> PrecomputeRmsdChanges(final ArrayList<Nucleotide> targetStructureMoved,
-      final HashSet<Integer> usedReference, final HashSet<Integer> usedTarget) {
-    ArrayList<NData> rmsdSums =
-        new ArrayList<NData>((referenceStructure.size() - usedReference.size())
-            * (targetStructureMoved.size() - usedTarget.size()));
-    for (int i = 0; i < referenceStructure.size(); i++) {
-      if (!usedReference.contains(i)) {
-        for (int j = 0; j < targetStructureMoved.size(); j++) {
-          if (!usedTarget.contains(j)) {
-            rmsdSums.add(new NData(
-                i, j, CheckAddition(referenceStructure.get(i), targetStructureMoved.get(j))));
+  private void AddToAccumulator(RmsdAccumulator accumulator, int reference, int target) {
+    accumulator.add(referenceBlock, reference * representatives, targetBlock,
+        target * representatives, representatives);
+  }
+
+  // Buffers owned by a single worker of the pair phase. Created once per worker slot and reused
+  // by all its tasks so the search loops do not allocate in the steady state.
+  private static final class PairScratch {
+    final CoordinatesBlock pairReference;
+    final CoordinatesBlock pairTarget;
+    final CoordinatesBlock pairTargetReversed;
+    // Grows with the largest query result, see NeighbourBuffer.
+    final NeighbourBuffer pairNeighbours = new NeighbourBuffer(64);
+    final double[] correlation = new double[9];
+
+    PairScratch(final int representatives) {
+      pairReference = new CoordinatesBlock(representatives * 2);
+      pairTarget = new CoordinatesBlock(representatives * 2);
+      pairTargetReversed = new CoordinatesBlock(representatives * 2);
+    }
+  }
+
+  // Buffers owned by a single worker of the triple phase, see PairScratch.
+  private static final class TripleScratch {
+    final CoordinatesBlock tripleReference;
+    final CoordinatesBlock tripleTarget;
+    final CoordinatesBlock referenceCentroids = new CoordinatesBlock(3);
+    final CoordinatesBlock targetCentroids = new CoordinatesBlock(3);
+    final Superimposer superimposer = new Superimposer();
+    final double[] correlation = new double[9];
+    final int[] neighbours;
+    final ArrayList<NData> triplesCandidates = new ArrayList<NData>();
+    final ArrayList<Integer> chainReference;
+    final ArrayList<Integer> chainTarget;
+    final CoordinatesBlock targetMoved;
+    final CandidateQueue candidates;
+    final RmsdAccumulator accumulator = new RmsdAccumulator();
+    final RmsdChanges changes;
+
+    TripleScratch(final int representatives, final int referenceSize, final int targetSize) {
+      tripleReference = new CoordinatesBlock(representatives * 3);
+      tripleTarget = new CoordinatesBlock(representatives * 3);
+      neighbours = new int[targetSize];
+      chainReference = new ArrayList<Integer>(referenceSize);
+      chainTarget = new ArrayList<Integer>(referenceSize);
+      targetMoved = new CoordinatesBlock(targetSize * representatives);
+      candidates = new CandidateQueue(referenceSize, targetSize);
+      changes = new RmsdChanges(targetMoved, representatives, candidates);
+    }
+  }
+
+  // Additions of unused nucleotides to the chain ordered from the best to the worst one. Only
+  // additions with cost up to 'maximumCost' are materialized, others cannot be accepted until
+  // the RMSD budget of the chain grows and are added later if needed.
+  private static final class RmsdChanges {
+    final CoordinatesBlock targetMoved;
+    final CoordinatesBlock firstRepresentatives;
+    // Grid over the first representative of moved target nucleotides.
+    final SpatialGrid grid = new SpatialGrid();
+    final CandidateQueue candidates;
+    final int representatives;
+    final NeighbourBuffer neighbours;
+    double maximumCost;
+
+    RmsdChanges(final CoordinatesBlock _targetMoved, final int _representatives,
+        final CandidateQueue _candidates) {
+      targetMoved = _targetMoved;
+      representatives = _representatives;
+      candidates = _candidates;
+      firstRepresentatives = new CoordinatesBlock(targetMoved.size / representatives);
+      neighbours = new NeighbourBuffer(firstRepresentatives.size);
+    }
+
+    // Target block was moved.
+    void rebuildGrid(final double _maximumCost) {
+      for (int j = 0; j < firstRepresentatives.size; j++) {
+        firstRepresentatives.copy(targetMoved, j * representatives, j, 1);
+      }
+      grid.build(firstRepresentatives, Math.sqrt(Math.max(_maximumCost, 0)));
+    }
+  }
+
+  private void PrecomputeRmsdChanges(
+      RmsdChanges changes, final boolean targetMoved, final double maximumCost) {
+    if (targetMoved) {
+      changes.rebuildGrid(maximumCost);
+    }
+    PrecomputeRmsdChanges(changes, maximumCost);
+  }
+
+  private void PrecomputeRmsdChanges(RmsdChanges changes, final double maximumCost) {
+    // Cost of addition includes squared distance of the first representatives so only target
+    // nucleotides within sqrt(maximumCost) can be accepted.
+    final double radius = Math.sqrt(Math.max(maximumCost, 0));
+    final NeighbourBuffer neighbours = changes.neighbours;
+    final CandidateQueue candidates = changes.candidates;
+    candidates.clear();
+    for (int i = candidates.usedReference.nextClearBit(0); i < referenceStructure.size();
+         i = candidates.usedReference.nextClearBit(i + 1)) {
+      final int first = i * representatives * 3;
+      final int count = changes.grid.query(referenceBlock.data[first],
+          referenceBlock.data[first + 1], referenceBlock.data[first + 2], radius, neighbours);
+      for (int n = 0; n < count; n++) {
+        final int j = neighbours.get(n);
+        if (!candidates.usedTarget.get(j)
+            && (!isSequenceDependent
+                || StringUtils.equalsIgnoreCase(referenceStructure.get(i).getCode(),
+                    targetStructure.get(j).getCode()))) {
+          final double cost = CheckAddition(i, j, changes.targetMoved);
+          if (cost <= maximumCost) {
+            candidates.push(i, j, cost);
           }
         }
       }
     }
-    Collections.sort(rmsdSums, new NDataComparator());
-    return rmsdSums;
+    changes.maximumCost = maximumCost;
+  }
+
+  // Highest addition cost that keeps chain of 'chainSize' nucleotides below rmsdLimit. Includes
+  // a small margin for rounding errors.
+  private double MaximumAdditionCost(int chainSize, double calculatedRmsdSum) {
+    return (rmsdLimit * rmsdLimit * chainSize * representatives - calculatedRmsdSum)
+        * (1 + 1e-9) + 1e-9;
   }
 
-  private double CheckAddition(final Nucleotide lhs, final Nucleotide rhs) {
+  // Sum of squared distances between representatives of the reference nucleotide and the moved
+  // target nucleotide.
+  private double CheckAddition(int reference, int target, final CoordinatesBlock targetMoved) {
+    final double[] a = referenceBlock.data;
+    final double[] b = targetMoved.data;
+    final int first = reference * representatives * 3;
+    final int second = target * representatives * 3;
     double sum = 0;
-    for (int i = 0; i < lhs.representatives.size(); i++) {
-      sum += Math.pow(
-          Coordinates.getDistance(lhs.representatives.get(i), rhs.representatives.get(i)), 2);
+    for (int i = 0; i < representatives * 3; i++) {
+      final double d = a[first + i] - b[second + i];
+      sum += d * d;
     }
     return sum;
   }
 
-  private NData FindBestCandidate(final HashSet<Integer> usedReference,
-      final HashSet<Integer> usedTarget, ArrayList<NData> precomputedDistances,
-      double calculatedRmsdSum) {
-    int chainSize = usedReference.size();
-    int index = -1;
-    NData bestCandidates = null;
+  private NData FindBestCandidate(RmsdChanges changes, double calculatedRmsdSum) {
+    final CandidateQueue candidates = changes.candidates;
+    final int chainSize = candidates.used;
 
-    for (int i = precomputedDistances.size() - 1; i >= 0; --i) {
-      NData best = precomputedDistances.get(i);
-      if ((usedReference.contains(best.index1) || usedTarget.contains(best.index2))
-          || ((isSequenceDependent && (!StringUtils.equalsIgnoreCase(referenceStructure.get(best.index1).getCode(),
-                                                                      targetStructure.get(best.index2).getCode()))))) {
-        precomputedDistances.remove(i);
-      } else {
-        bestCandidates = best;
-        index = i; // precomputedDistances.remove(i);
-        break;
-      }
+    // Nothing left within materialized additions but the chain could accept more expensive one.
+    final double maximumCost = MaximumAdditionCost(chainSize + 1, calculatedRmsdSum);
+    if (!candidates.skipUsed() && maximumCost > changes.maximumCost) {
+      PrecomputeRmsdChanges(changes, Math.max(changes.maximumCost * 2, maximumCost));
+      return FindBestCandidate(changes, calculatedRmsdSum);
     }
 
-    if (bestCandidates != null) {
+    if (candidates.size() > 0) {
       final int size = chainSize + 1;
-      final double rmsd = CalculateFastRmsd(size, calculatedRmsdSum + bestCandidates.rmsd);
+      final double rmsd = CalculateFastRmsd(size, calculatedRmsdSum + candidates.peekCost());
       if (rmsd < rmsdLimit) {
-        precomputedDistances.remove(index);
+        final NData bestCandidates = new NData(
+            candidates.peekReference(), candidates.peekTarget(), candidates.peekCost());
+        candidates.pop();
         return bestCandidates;
       }
     }
@@ -777,16 +958,10 @@ public class GeometricAligner {
   }
 
   private double CalculateRmsdSum(ArrayList<Integer> chainReference, ArrayList<Integer> chainTarget,
-      ArrayList<Nucleotide> targetStructureMoved) {
+      final CoordinatesBlock targetMoved) {
     double rmsdSum = 0;
     for (int i = 0; i < chainReference.size(); i++) {
-      for (int j = 0; j < referenceStructure.get(0).representatives.size(); j++) {
-        rmsdSum +=
-            Math.pow(Coordinates.getDistance(
-                         referenceStructure.get(chainReference.get(i)).representatives.get(j),
-                         targetStructureMoved.get(chainTarget.get(i)).representatives.get(j)),
-                2);
-      }
+      rmsdSum += CheckAddition(chainReference.get(i), chainTarget.get(i), targetMoved);
     }
 
     return rmsdSum;
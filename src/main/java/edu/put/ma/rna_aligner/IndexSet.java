@@ -0,0 +1,78 @@
+package edu.put.ma.rna_aligner;
+
+// Set of indexes from [0, capacity) with O(1) add, remove, contains and access by position.
+// Values are kept densely packed in 'items' and 'positions' maps every value back to its place,
+// removal moves the last value into the freed place. Order of values is not preserved.
+public class IndexSet {
+  private final int[] items;
+  // Position of the value in 'items' or -1 if the value is not in the set.
+  private final int[] positions;
+  private int size = 0;
+
+  public IndexSet(int capacity) {
+    items = new int[capacity];
+    positions = new int[capacity];
+    for (int i = 0; i < capacity; i++) {
+      positions[i] = -1;
+    }
+  }
+
+  public IndexSet(final IndexSet rhs) {
+    items = rhs.items.clone();
+    positions = rhs.positions.clone();
+    size = rhs.size;
+  }
+
+  // Set with all values from [0, capacity).
+  public static IndexSet full(int capacity) {
+    IndexSet set = new IndexSet(capacity);
+    for (int i = 0; i < capacity; i++) {
+      set.items[i] = i;
+      set.positions[i] = i;
+    }
+    set.size = capacity;
+    return set;
+  }
+
+  public final boolean contains(int value) {
+    return value >= 0 && value < positions.length && positions[value] >= 0;
+  }
+
+  // Returns false if the value was already in the set.
+  public final boolean add(int value) {
+    if (contains(value)) {
+      return false;
+    }
+    items[size] = value;
+    positions[value] = size++;
+    return true;
+  }
+
+  // Returns false if the value was not in the set.
+  public final boolean remove(int value) {
+    if (!contains(value)) {
+      return false;
+    }
+    removeAt(positions[value]);
+    return true;
+  }
+
+  // Value at the given position, positions are [0, size()).
+  public final int get(int position) {
+    return items[position];
+  }
+
+  // Removes and returns value at the given position.
+  public final int removeAt(int position) {
+    final int value = items[position];
+    final int last = items[--size];
+    items[position] = last;
+    positions[last] = position;
+    positions[value] = -1;
+    return value;
+  }
+
+  public final int size() {
+    return size;
+  }
+}
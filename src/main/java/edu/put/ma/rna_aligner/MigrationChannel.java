@@ -0,0 +1,82 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Lock-free exchange of specimens between the islands (evolution threads) of GeneticAligner.
+// Every island has its own inbox; emigrants are copied into the inboxes of the islands selected by
+// the topology and picked up by the receiving island at its next migration.
+public class MigrationChannel {
+  // RING - next island, RANDOM - one random island, BROADCAST - all other islands.
+  public enum Topology { RING, RANDOM, BROADCAST }
+
+  private final Topology topology;
+  private final ArrayList<ConcurrentLinkedQueue<Specimen>> inboxes;
+  // Maximum number of waiting specimens per island, the oldest ones are dropped first.
+  private final int capacity;
+
+  public MigrationChannel(final Topology _topology, int islands, int _capacity) {
+    topology = _topology;
+    capacity = Math.max(1, _capacity);
+    inboxes = new ArrayList<ConcurrentLinkedQueue<Specimen>>(islands);
+    for (int i = 0; i < islands; i++) {
+      inboxes.add(new ConcurrentLinkedQueue<Specimen>());
+    }
+  }
+
+  public final int islands() {
+    return inboxes.size();
+  }
+
+  // Sends copies of the first 'count' specimens of the (sorted) population.
+  public final void send(int island, final Population population, int count) {
+    final int islands = inboxes.size();
+    if (islands < 2) {
+      return;
+    }
+    count = Math.min(count, population.size());
+    switch (topology) {
+      case RING:
+        sendTo((island + 1) % islands, population, count);
+        break;
+      case RANDOM:
+        int target = ThreadLocalRandom.current().nextInt(islands - 1);
+        if (target >= island) {
+          target++;
+        }
+        sendTo(target, population, count);
+        break;
+      case BROADCAST:
+        for (int i = 0; i < islands; i++) {
+          if (i != island) {
+            sendTo(i, population, count);
+          }
+        }
+        break;
+    }
+  }
+
+  // Takes all specimens waiting for the island.
+  public final ArrayList<Specimen> receive(int island) {
+    final ConcurrentLinkedQueue<Specimen> inbox = inboxes.get(island);
+    final ArrayList<Specimen> immigrants = new ArrayList<Specimen>();
+    Specimen specimen;
+    while ((specimen = inbox.poll()) != null) {
+      immigrants.add(specimen);
+    }
+    return immigrants;
+  }
+
+  private void sendTo(int target, final Population population, int count) {
+    final ConcurrentLinkedQueue<Specimen> inbox = inboxes.get(target);
+    for (int i = 0; i < count; i++) {
+      // Islands change their specimens independently, each one gets its own copy.
+      inbox.offer((Specimen) population.get(i).clone());
+    }
+    // Island that does not collect its specimens (e.g. not started yet) keeps only the newest.
+    while (inbox.size() > capacity) {
+      inbox.poll();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.Arrays;
+
+// Indexes of points found by a SpatialGrid query. The buffer grows with the largest result and
+// is reused by the next queries, so it does not have to be sized for all points.
+public class NeighbourBuffer {
+  private int[] items;
+  private int size = 0;
+
+  public NeighbourBuffer(int _capacity) {
+    items = new int[Math.max(_capacity, 16)];
+  }
+
+  public final void clear() {
+    size = 0;
+  }
+
+  public final void add(int item) {
+    if (size == items.length) {
+      items = Arrays.copyOf(items, size * 2);
+    }
+    items[size++] = item;
+  }
+
+  public final void sort() {
+    Arrays.sort(items, 0, size);
+  }
+
+  public final int get(int index) {
+    return items[index];
+  }
+
+  public final int size() {
+    return size;
+  }
+}
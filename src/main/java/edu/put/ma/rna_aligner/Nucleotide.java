@@ -44,6 +44,21 @@ public class Nucleotide {
     return result;
   }
 
+  // All representatives of all nucleotides as one primitive block.
+  // Nucleotide 'i' occupies atoms [i * representatives, (i + 1) * representatives).
+  public static CoordinatesBlock NucleotidesToBlock(final ArrayList<Nucleotide> nucleotides) {
+    final int representatives =
+        (nucleotides.isEmpty()) ? 0 : nucleotides.get(0).representatives.size();
+    CoordinatesBlock block = new CoordinatesBlock(nucleotides.size() * representatives);
+    int index = 0;
+    for (final Nucleotide nucleotide : nucleotides) {
+      for (final Coordinates rep : nucleotide.representatives) {
+        block.set(index++, rep);
+      }
+    }
+    return block;
+  }
+
   public static ArrayList<Coordinates> NucleotidesToListMapped(
       final ArrayList<Nucleotide> nucleotides, final int[] map, boolean primary) {
     ArrayList<Coordinates> result = new ArrayList<Coordinates>();
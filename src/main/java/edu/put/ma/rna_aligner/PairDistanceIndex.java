@@ -0,0 +1,52 @@
+package edu.put.ma.rna_aligner;
+
+// All pairs (i < j) of nucleotides placed in the space of distances between their representatives
+// (distance profile). Dist.Similarity of two pairs is the squared distance of their profiles, so
+// pairs similar to a given one are found with a ball query instead of a scan over all pairs.
+// Only the first three representatives are indexed, the rest can only increase the similarity.
+public class PairDistanceIndex {
+  // Profiles are dense, about one cell per pair keeps the grid small for large structures.
+  private static final int MAX_CELLS_PER_PAIR = 1;
+
+  public final int[] first;
+  public final int[] second;
+  private final SpatialGrid grid;
+
+  // Pair indexes are the same as in the distance matrix. Profiles are read from the distance
+  // matrix, it must outlive the index.
+  public PairDistanceIndex(final DistanceMatrix distances, final double cellSize) {
+    final int pairs = distances.pairs();
+    first = new int[pairs];
+    second = new int[pairs];
+    int pair = 0;
+    for (int i = 0; i < distances.size; i++) {
+      for (int j = i + 1; j < distances.size; j++) {
+        first[pair] = i;
+        second[pair] = j;
+        pair++;
+      }
+    }
+    grid = new SpatialGrid(Stripe(distances, 0), Stripe(distances, 1), Stripe(distances, 2),
+        pairs, cellSize, MAX_CELLS_PER_PAIR);
+  }
+
+  private static double[] Stripe(final DistanceMatrix distances, final int index) {
+    return (index < distances.representatives) ? distances.stripe(index) : null;
+  }
+
+  private static double Component(final DistanceMatrix distances, final int pair, final int index) {
+    return (index < distances.representatives) ? distances.get(pair, index) : 0;
+  }
+
+  // Replaces 'result' with pairs for which profile is within 'radius' from profile of the given
+  // pair. Pairs are ordered the same way as in the distance matrix.
+  public int query(final DistanceMatrix distances, final int pair, final double radius,
+      NeighbourBuffer result) {
+    return grid.query(Component(distances, pair, 0), Component(distances, pair, 1),
+        Component(distances, pair, 2), radius, result);
+  }
+
+  public final int size() {
+    return first.length;
+  }
+}
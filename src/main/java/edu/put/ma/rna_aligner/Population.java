@@ -0,0 +1,48 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+// Population of unique specimens. Repeated specimens are rejected in O(1) using the hash of their
+// maps instead of scanning the whole population. Specimens must not be changed once added.
+public class Population {
+  private final ArrayList<Specimen> specimens;
+  private final HashSet<Specimen> unique;
+
+  public Population(int capacity) {
+    specimens = new ArrayList<Specimen>(capacity);
+    unique = new HashSet<Specimen>(Math.max(16, capacity * 2));
+  }
+
+  // Returns false if the same specimen is already in the population.
+  public final boolean add(final Specimen specimen) {
+    if (!unique.add(specimen)) {
+      return false;
+    }
+    specimens.add(specimen);
+    return true;
+  }
+
+  public final boolean contains(final Specimen specimen) {
+    return unique.contains(specimen);
+  }
+
+  public final Specimen get(int index) {
+    return specimens.get(index);
+  }
+
+  // Removes the last (the worst one in a sorted population) specimen.
+  public final void removeLast() {
+    unique.remove(specimens.remove(specimens.size() - 1));
+  }
+
+  public final int size() {
+    return specimens.size();
+  }
+
+  public final void sort(final Comparator<Object> comparator) {
+    Collections.sort(specimens, comparator);
+  }
+}
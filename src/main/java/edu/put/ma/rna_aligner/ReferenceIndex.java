@@ -0,0 +1,57 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+// Reference side of an alignment precomputed once and shared by all alignments of the same
+// reference (e.g. one reference against all models of a directory): coordinates block, distance
+// matrix and the list of reference pairs. It is never modified by the aligners, so one index can
+// be used by concurrent alignments.
+public class ReferenceIndex {
+  public final ArrayList<Nucleotide> structure;
+  // Representatives of all nucleotides, see Nucleotide.NucleotidesToBlock.
+  public final CoordinatesBlock block;
+  public final DistanceMatrix distances;
+  public final int representatives;
+  // All pairs (i < j) in the order of DistanceMatrix, rmsd holds the pair id.
+  private final ArrayList<NData> pairs;
+
+  public ReferenceIndex(final ArrayList<Nucleotide> _structure) {
+    this(_structure, null);
+  }
+
+  // Distances can be null, then they are calculated.
+  public ReferenceIndex(final ArrayList<Nucleotide> _structure, final DistanceMatrix _distances) {
+    super();
+    structure = _structure;
+    block = Nucleotide.NucleotidesToBlock(structure);
+    distances = (_distances != null) ? _distances : new DistanceMatrix(structure);
+    representatives = structure.isEmpty() ? 0 : structure.get(0).representatives.size();
+    pairs = new ArrayList<NData>(distances.pairs());
+    int id = 0;
+    for (int i = 0; i < structure.size(); i++) {
+      for (int j = i + 1; j < structure.size(); j++) {
+        pairs.add(new NData(i, j, id++));
+      }
+    }
+  }
+
+  public final int size() {
+    return structure.size();
+  }
+
+  public final int pairCount() {
+    return pairs.size();
+  }
+
+  // Pairs of the shard (pair id % shardCount == shardIndex) in random order. Pairs are shared,
+  // only the list belongs to the caller.
+  public final ArrayList<NData> shuffledPairs(int shardIndex, int shardCount) {
+    final ArrayList<NData> result = new ArrayList<NData>(pairs.size() / shardCount + 1);
+    for (int id = shardIndex; id < pairs.size(); id += shardCount) {
+      result.add(pairs.get(id));
+    }
+    Collections.shuffle(result);
+    return result;
+  }
+}
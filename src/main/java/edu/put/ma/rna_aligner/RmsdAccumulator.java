@@ -0,0 +1,156 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.Arrays;
+
+// Running sums of two growing sets of atoms: coordinate sums, cross products and squared norms.
+// They are enough to get the centered correlation matrix at any time, so the minimal RMSD after
+// optimal superposition (and the superposition itself) of the whole sets is available in O(1)
+// after every addition instead of refitting all atoms.
+// Atoms are accumulated relative to the first added pair to limit the cancellation errors.
+public class RmsdAccumulator {
+  public int size = 0;
+
+  private double originAx, originAy, originAz;
+  private double originBx, originBy, originBz;
+  private double sumAx, sumAy, sumAz;
+  private double sumBx, sumBy, sumBz;
+  // cross[3 * i + j] = sum(b_i * a_j), the same layout as the Superimposer correlation matrix.
+  private final double[] cross = new double[9];
+  private double squares;
+  // Centered correlation matrix workspace.
+  private final double[] correlation = new double[9];
+
+  public RmsdAccumulator() {}
+
+  public RmsdAccumulator(final RmsdAccumulator rhs) {
+    size = rhs.size;
+    originAx = rhs.originAx;
+    originAy = rhs.originAy;
+    originAz = rhs.originAz;
+    originBx = rhs.originBx;
+    originBy = rhs.originBy;
+    originBz = rhs.originBz;
+    sumAx = rhs.sumAx;
+    sumAy = rhs.sumAy;
+    sumAz = rhs.sumAz;
+    sumBx = rhs.sumBx;
+    sumBy = rhs.sumBy;
+    sumBz = rhs.sumBz;
+    System.arraycopy(rhs.cross, 0, cross, 0, 9);
+    squares = rhs.squares;
+  }
+
+  public final void clear() {
+    size = 0;
+    sumAx = sumAy = sumAz = sumBx = sumBy = sumBz = 0;
+    Arrays.fill(cross, 0);
+    squares = 0;
+  }
+
+  public final void add(double ax, double ay, double az, double bx, double by, double bz) {
+    update(ax, ay, az, bx, by, bz, 1);
+  }
+
+  // Adds 'count' atoms of both blocks starting at 'indexA' and 'indexB'.
+  public final void add(final CoordinatesBlock a, int indexA, final CoordinatesBlock b, int indexB,
+      int count) {
+    for (int i = 0; i < count; i++) {
+      final int ia = (indexA + i) * 3;
+      final int ib = (indexB + i) * 3;
+      update(a.data[ia], a.data[ia + 1], a.data[ia + 2], b.data[ib], b.data[ib + 1],
+          b.data[ib + 2], 1);
+    }
+  }
+
+  // Removes atoms previously added with the same coordinates.
+  public final void remove(final CoordinatesBlock a, int indexA, final CoordinatesBlock b,
+      int indexB, int count) {
+    for (int i = 0; i < count; i++) {
+      final int ia = (indexA + i) * 3;
+      final int ib = (indexB + i) * 3;
+      update(a.data[ia], a.data[ia + 1], a.data[ia + 2], b.data[ib], b.data[ib + 1],
+          b.data[ib + 2], -1);
+    }
+  }
+
+  private void update(double ax, double ay, double az, double bx, double by, double bz,
+      int sign) {
+    if (size == 0) {
+      // Reset the origin, nothing is accumulated yet.
+      originAx = ax;
+      originAy = ay;
+      originAz = az;
+      originBx = bx;
+      originBy = by;
+      originBz = bz;
+    }
+    ax -= originAx;
+    ay -= originAy;
+    az -= originAz;
+    bx -= originBx;
+    by -= originBy;
+    bz -= originBz;
+    size += sign;
+    if (size == 0) {
+      // Everything was removed, drop the rounding residue.
+      clear();
+      return;
+    }
+    sumAx += sign * ax;
+    sumAy += sign * ay;
+    sumAz += sign * az;
+    sumBx += sign * bx;
+    sumBy += sign * by;
+    sumBz += sign * bz;
+    squares += sign * (ax * ax + ay * ay + az * az + bx * bx + by * by + bz * bz);
+    cross[0] += sign * bx * ax;
+    cross[1] += sign * bx * ay;
+    cross[2] += sign * bx * az;
+    cross[3] += sign * by * ax;
+    cross[4] += sign * by * ay;
+    cross[5] += sign * by * az;
+    cross[6] += sign * bz * ax;
+    cross[7] += sign * bz * ay;
+    cross[8] += sign * bz * az;
+  }
+
+  // Fills 'correlation' (at least 9 elements) with the centered correlation matrix and returns
+  // the sum of squared norms of both centered sets.
+  private double centeredCorrelation(double[] correlation) {
+    final double ax = sumAx / size, ay = sumAy / size, az = sumAz / size;
+    final double bx = sumBx / size, by = sumBy / size, bz = sumBz / size;
+    correlation[0] = cross[0] - size * bx * ax;
+    correlation[1] = cross[1] - size * bx * ay;
+    correlation[2] = cross[2] - size * bx * az;
+    correlation[3] = cross[3] - size * by * ax;
+    correlation[4] = cross[4] - size * by * ay;
+    correlation[5] = cross[5] - size * by * az;
+    correlation[6] = cross[6] - size * bz * ax;
+    correlation[7] = cross[7] - size * bz * ay;
+    correlation[8] = cross[8] - size * bz * az;
+    return squares - size * (ax * ax + ay * ay + az * az) - size * (bx * bx + by * by + bz * bz);
+  }
+
+  // Minimal RMSD of all accumulated atoms after optimal superposition.
+  public final double getRmsd() {
+    if (size == 0) {
+      return 0;
+    }
+    final double innerProducts = centeredCorrelation(correlation);
+    return Superimposer.getMinimalRMS(correlation, innerProducts, size);
+  }
+
+  // Sum of squared deviations of all accumulated atoms after optimal superposition.
+  public final double getSquaredDeviations() {
+    final double rmsd = getRmsd();
+    return rmsd * rmsd * size;
+  }
+
+  // Optimal superposition of the second set onto the first one.
+  public final Superimposer getSuperimposer() {
+    final double innerProducts = centeredCorrelation(correlation);
+    return new Superimposer(correlation, innerProducts,
+        new Coordinates(sumAx / size + originAx, sumAy / size + originAy, sumAz / size + originAz),
+        new Coordinates(sumBx / size + originBx, sumBy / size + originBy, sumBz / size + originBz));
+  }
+}
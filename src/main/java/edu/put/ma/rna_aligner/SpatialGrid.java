@@ -0,0 +1,169 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.Arrays;
+
+// Uniform grid (cell list) over a set of points. Points are bucketed with a counting sort so the
+// whole index is stored in two primitive arrays. Used to visit only points that are close to
+// a query position instead of scanning all of them. Points are not copied, they must not change
+// while the grid is used. The grid can be rebuilt for new points reusing its arrays.
+public class SpatialGrid {
+  // Default upper bound of cells per point, cell size is increased for sparse point sets.
+  private static final int MAX_CELLS_PER_POINT = 8;
+
+  // Coordinate 'a' of the point i is axes[a][offsets[a] + i * strides[a]].
+  private final double[][] axes = new double[3][];
+  private final int[] offsets = new int[3];
+  private final int[] strides = new int[3];
+  private int size;
+  private double cellSize;
+  private double minX;
+  private double minY;
+  private double minZ;
+  private int cellsX;
+  private int cellsY;
+  private int cellsZ;
+  // Points of the cell c are items[cellStart[c]] ... items[cellStart[c + 1] - 1].
+  private int[] cellStart = new int[0];
+  private int[] items = new int[0];
+
+  // Empty grid, call 'build' before use.
+  public SpatialGrid() {}
+
+  public SpatialGrid(final CoordinatesBlock _points, final double _cellSize) {
+    build(_points, _cellSize);
+  }
+
+  // Points given as separate coordinate arrays (e.g. stripes of a distance matrix), null axis
+  // means all points have 0 there. Large grids can limit the number of cells per point.
+  public SpatialGrid(final double[] _xs, final double[] _ys, final double[] _zs, final int _size,
+      final double _cellSize, final int _maxCellsPerPoint) {
+    setAxis(0, _xs, 0, 1);
+    setAxis(1, _ys, 0, 1);
+    setAxis(2, _zs, 0, 1);
+    build(_size, _cellSize, _maxCellsPerPoint);
+  }
+
+  public final void build(final CoordinatesBlock _points, final double _cellSize) {
+    setAxis(0, _points.data, 0, 3);
+    setAxis(1, _points.data, 1, 3);
+    setAxis(2, _points.data, 2, 3);
+    build(_points.size, _cellSize, MAX_CELLS_PER_POINT);
+  }
+
+  private void setAxis(final int axis, final double[] values, final int offset, final int stride) {
+    axes[axis] = (values != null) ? values : new double[1];
+    offsets[axis] = (values != null) ? offset : 0;
+    strides[axis] = (values != null) ? stride : 0;
+  }
+
+  private double Coordinate(final int axis, final int point) {
+    return axes[axis][offsets[axis] + point * strides[axis]];
+  }
+
+  private void build(final int _size, final double _cellSize, final int maxCellsPerPoint) {
+    size = _size;
+
+    double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+    double lowX = Double.MAX_VALUE, lowY = Double.MAX_VALUE, lowZ = Double.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      final double x = Coordinate(0, i), y = Coordinate(1, i), z = Coordinate(2, i);
+      lowX = Math.min(lowX, x);
+      lowY = Math.min(lowY, y);
+      lowZ = Math.min(lowZ, z);
+      maxX = Math.max(maxX, x);
+      maxY = Math.max(maxY, y);
+      maxZ = Math.max(maxZ, z);
+    }
+    if (size == 0) {
+      lowX = lowY = lowZ = maxX = maxY = maxZ = 0;
+    }
+    minX = lowX;
+    minY = lowY;
+    minZ = lowZ;
+
+    double cell = Math.max(_cellSize, 1e-3);
+    while (CellsAlong(maxX - minX, cell) * CellsAlong(maxY - minY, cell)
+            * CellsAlong(maxZ - minZ, cell)
+        > (long) maxCellsPerPoint * Math.max(size, 1)) {
+      cell *= 2;
+    }
+    cellSize = cell;
+    cellsX = (int) CellsAlong(maxX - minX, cellSize);
+    cellsY = (int) CellsAlong(maxY - minY, cellSize);
+    cellsZ = (int) CellsAlong(maxZ - minZ, cellSize);
+
+    // Counting sort of points by cell, in place in 'cellStart'. Cells are computed twice instead
+    // of being stored, the grid keeps only the two arrays it needs for queries.
+    final int cells = cellsX * cellsY * cellsZ;
+    if (items.length < size) {
+      items = new int[size];
+    }
+    if (cellStart.length < cells + 1) {
+      cellStart = new int[cells + 1];
+    } else {
+      Arrays.fill(cellStart, 0, cells + 1, 0);
+    }
+    for (int i = 0; i < size; i++) {
+      cellStart[CellOf(i)]++;
+    }
+    // cellStart[c] - end of the cell c, filled backwards so it ends at the start of the cell.
+    for (int c = 1; c < cells; c++) {
+      cellStart[c] += cellStart[c - 1];
+    }
+    for (int i = size - 1; i >= 0; i--) {
+      items[--cellStart[CellOf(i)]] = i;
+    }
+    cellStart[cells] = size;
+  }
+
+  private int CellOf(final int point) {
+    return CellIndex(Cell(Coordinate(0, point), minX, cellsX),
+        Cell(Coordinate(1, point), minY, cellsY), Cell(Coordinate(2, point), minZ, cellsZ));
+  }
+
+  private static long CellsAlong(final double extent, final double cell) {
+    return (long) Math.floor(extent / cell) + 1;
+  }
+
+  private int Cell(final double value, final double min, final int cells) {
+    final int cell = (int) Math.floor((value - min) / cellSize);
+    return Math.max(0, Math.min(cells - 1, cell));
+  }
+
+  private int CellIndex(final int x, final int y, final int z) {
+    return (z * cellsY + y) * cellsX + x;
+  }
+
+  // Replaces 'result' with indexes of points within 'radius' from the query position (inclusive)
+  // in ascending order. Returns number of found points.
+  public int query(final double x, final double y, final double z, final double radius,
+      NeighbourBuffer result) {
+    final int fromX = Cell(x - radius, minX, cellsX), toX = Cell(x + radius, minX, cellsX);
+    final int fromY = Cell(y - radius, minY, cellsY), toY = Cell(y + radius, minY, cellsY);
+    final int fromZ = Cell(z - radius, minZ, cellsZ), toZ = Cell(z + radius, minZ, cellsZ);
+    final double radius2 = radius * radius;
+    final double[] xs = axes[0], ys = axes[1], zs = axes[2];
+    final int offsetX = offsets[0], offsetY = offsets[1], offsetZ = offsets[2];
+    final int strideX = strides[0], strideY = strides[1], strideZ = strides[2];
+
+    result.clear();
+    for (int cz = fromZ; cz <= toZ; cz++) {
+      for (int cy = fromY; cy <= toY; cy++) {
+        for (int cx = fromX; cx <= toX; cx++) {
+          final int cell = CellIndex(cx, cy, cz);
+          for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+            final int i = items[k];
+            final double dx = xs[offsetX + i * strideX] - x;
+            final double dy = ys[offsetY + i * strideY] - y;
+            final double dz = zs[offsetZ + i * strideZ] - z;
+            if (dx * dx + dy * dy + dz * dz <= radius2) {
+              result.add(items[k]);
+            }
+          }
+        }
+      }
+    }
+    result.sort();
+    return result.size();
+  }
+}
@@ -2,15 +2,14 @@ package edu.put.ma.rna_aligner;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Random;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.util.Precision;
 
 public class Specimen {
+  // Number of statistics updates after which they are rebuilt from scratch.
+  private static final int MAXIMUM_STATISTICS_UPDATES = 4096;
+
   public final ArrayList<Nucleotide> primaryNucleotides;
   public final ArrayList<Nucleotide> secondaryNucleotides;
 
@@ -18,9 +17,9 @@ public class Specimen {
   public int[] primaryNucleotidesUsed; // 0 if not used, 1 if used.
   public int[] secondaryNucleotidesMap; // number of secondary nucleotide that is associated with
                                         // the same index primary nucleotide.
-  public List<Integer> availableNucleotides = new ArrayList<Integer>();
-  public List<Integer> promisingNucleotides = new ArrayList<Integer>();
-  public HashMap<Integer, Integer> secondToFirst = new HashMap<Integer, Integer>();
+  public IndexSet availableNucleotides; // secondary nucleotides not used in the map.
+  public IndexSet promisingNucleotides; // neighbours of recently used secondary nucleotides.
+  public int[] secondToFirst; // inverse of secondaryNucleotidesMap, -1 if not used.
 
   private Random rand = new Random();
   private boolean changed = true;
@@ -28,6 +27,14 @@ public class Specimen {
   private double incorrectlyAlignedResiduesRatio = 0;
 
   private final AlignerConfig config;
+  private final SpecimenFitness fitness;
+  // Sufficient statistics of all mapped pairs (i, secondaryNucleotidesMap[i]) updated by every
+  // change of the map, so the RMSD is recalculated in O(changes). Rebuilt from scratch from time
+  // to time to drop the accumulated rounding errors.
+  private final RmsdAccumulator statistics;
+  private int statisticsUpdates = 0;
+  // Zobrist hash of secondaryNucleotidesMap, xor of keys of all mapped pairs.
+  private long mappingHash = 0;
   private int singleMutation = 65;
   private int doubleMutation = 15;
   private int tripleMutation = 10;
@@ -37,7 +44,7 @@ public class Specimen {
 
   Specimen(final AlignerConfig _config, final ArrayList<Nucleotide> _primaryNucleotides,
       final ArrayList<Nucleotide> _secondaryNucleotides, final boolean _isSequenceDependent,
-      final boolean _respectOrder) {
+      final boolean _respectOrder, final SpecimenFitness _fitness) {
     super();
     if (_primaryNucleotides.size() > _secondaryNucleotides.size()) {
       secondaryNucleotides = _primaryNucleotides;
@@ -50,8 +57,16 @@ public class Specimen {
     respectOrder = _respectOrder;
     primaryNucleotidesUsed = new int[primaryNucleotides.size()];
     secondaryNucleotidesMap = new int[primaryNucleotides.size()];
+    Arrays.fill(primaryNucleotidesUsed, -1);
+    Arrays.fill(secondaryNucleotidesMap, -1);
+    availableNucleotides = new IndexSet(secondaryNucleotides.size());
+    promisingNucleotides = new IndexSet(secondaryNucleotides.size());
+    secondToFirst = new int[secondaryNucleotides.size()];
+    Arrays.fill(secondToFirst, -1);
+    statistics = new RmsdAccumulator();
     
     config = _config;
+    fitness = _fitness;
     singleMutation = config.singleMutation;
     doubleMutation = config.singleMutation + config.doubleMutation;
     tripleMutation = config.singleMutation + config.doubleMutation + config.tripleMutation;
@@ -59,67 +74,66 @@ public class Specimen {
         + config.quadrupleMutation;
   }
 
+  // Copy with bulk copies of all arrays.
+  private Specimen(final Specimen rhs) {
+    super();
+    primaryNucleotides = rhs.primaryNucleotides;
+    secondaryNucleotides = rhs.secondaryNucleotides;
+    isSequenceDependent = rhs.isSequenceDependent;
+    respectOrder = rhs.respectOrder;
+    min_size = rhs.min_size;
+    primaryNucleotidesUsed = rhs.primaryNucleotidesUsed.clone();
+    secondaryNucleotidesMap = rhs.secondaryNucleotidesMap.clone();
+    availableNucleotides = new IndexSet(rhs.availableNucleotides);
+    promisingNucleotides = new IndexSet(rhs.promisingNucleotides);
+    secondToFirst = rhs.secondToFirst.clone();
+    statistics = new RmsdAccumulator(rhs.statistics);
+    statisticsUpdates = rhs.statisticsUpdates;
+    mappingHash = rhs.mappingHash;
+    changed = rhs.changed;
+    rmsd = rhs.rmsd;
+    incorrectlyAlignedResiduesRatio = rhs.incorrectlyAlignedResiduesRatio;
+
+    config = rhs.config;
+    fitness = rhs.fitness;
+    singleMutation = rhs.singleMutation;
+    doubleMutation = rhs.doubleMutation;
+    tripleMutation = rhs.tripleMutation;
+    quadrupleMutation = rhs.quadrupleMutation;
+  }
+
   @Override
   public Object clone() {
-    Specimen copy =
-        new Specimen(config, primaryNucleotides, secondaryNucleotides, isSequenceDependent, respectOrder);
-    for (int i = 0; i < primaryNucleotidesUsed.length; i++) {
-      copy.primaryNucleotidesUsed[i] = this.primaryNucleotidesUsed[i];
-    }
-    for (int i = 0; i < secondaryNucleotidesMap.length; i++) {
-      copy.secondaryNucleotidesMap[i] = this.secondaryNucleotidesMap[i];
-    }
-    for (int val : this.availableNucleotides) {
-      copy.availableNucleotides.add(val);
-    }
-    for (int val : this.promisingNucleotides) {
-      copy.promisingNucleotides.add(val);
-    }
-    for (Map.Entry<Integer, Integer> keyVal : this.secondToFirst.entrySet()) {
-      copy.secondToFirst.put(keyVal.getKey(), keyVal.getValue());
-    }
-
-    copy.changed = this.changed;
-    copy.rmsd = this.rmsd;
-
-    return copy;
+    return new Specimen(this);
   }
 
   public void initialize(ArrayList<Integer> chainReference, ArrayList<Integer> chainTarget) {
     // Prepare available Residues
-    for (int i = 0; i < secondaryNucleotides.size(); i++) {
-      availableNucleotides.add(i);
-    }
+    availableNucleotides = IndexSet.full(secondaryNucleotides.size());
     for (int i = 0; i < primaryNucleotidesUsed.length; i++) {
       primaryNucleotidesUsed[i] = -1;
-      secondaryNucleotidesMap[i] = -1;
+      setMapping(i, -1);
     }
 
     for (int i = 0; i < chainReference.size(); i++) {
       int idxRef = chainReference.get(i);
       int idxTar = chainTarget.get(i);
       primaryNucleotidesUsed[idxRef] = 1;
-      int idx = availableNucleotides.indexOf(idxRef);
-      // Should always be >= 0.
-      if (idx >= 0) {
-        availableNucleotides.remove(idx);
-      } else {
+      // Should always be available.
+      if (!availableNucleotides.remove(idxTar)) {
         System.err.println("idx not in available nucleotidex");
         System.err.println(idxRef);
         System.err.println(idxTar);
-        System.err.println(idx);
       }
-      secondaryNucleotidesMap[idxRef] = idxTar;
-      secondToFirst.put(idxTar, idxRef);
+      setMapping(idxRef, idxTar);
+      secondToFirst[idxTar] = idxRef;
     }
     calculateRMSD();
   }
 
   public void initialize(int percentage) {
     // Prepare available Residues
-    for (int i = 0; i < secondaryNucleotides.size(); i++) {
-      availableNucleotides.add(i);
-    }
+    availableNucleotides = IndexSet.full(secondaryNucleotides.size());
     int selected = -1;
     for (int i = 0; i < primaryNucleotidesUsed.length; i++) {
       // 10-90 chance to use primary residue.
@@ -128,23 +142,20 @@ public class Specimen {
         if (selected == -1) {
           selected = getRandomAvailable();
         } else {
-          final Integer index = Integer.valueOf(++selected);
-          if (availableNucleotides.contains(index)) {
-            availableNucleotides.remove(index);
-          } else {
+          if (!availableNucleotides.remove(++selected)) {
             selected = getRandomAvailable();
           }
         }
-        secondaryNucleotidesMap[i] = selected;
+        setMapping(i, selected);
         if (selected >= 0) {
-          secondToFirst.put(selected, i);
+          secondToFirst[selected] = i;
         } else {
           primaryNucleotidesUsed[i] = -1;
         }
       } else {
         selected = -1;
         primaryNucleotidesUsed[i] = -1;
-        secondaryNucleotidesMap[i] = -1;
+        setMapping(i, -1);
       }
     }
     calculateRMSD();
@@ -152,21 +163,20 @@ public class Specimen {
 
   private int getRandomAvailable() {
     if (promisingNucleotides.size() > 0 && rand.nextInt(100) > 75) {
-      final int index = rand.nextInt(promisingNucleotides.size());
-      final int value = promisingNucleotides.get(index);
-      promisingNucleotides.remove(index);
-      availableNucleotides.remove(Integer.valueOf(value));
-      return value;
-    } else if (availableNucleotides.size() > 0) {
-      final int index = rand.nextInt(availableNucleotides.size());
-      final int value = availableNucleotides.get(index);
-      availableNucleotides.remove(index);
-      final Integer leftNeighbour = Integer.valueOf(value - 1);
+      final int value = promisingNucleotides.removeAt(rand.nextInt(promisingNucleotides.size()));
+      // Promising nucleotide could be used since it was added, take a random one then.
+      if (availableNucleotides.remove(value)) {
+        return value;
+      }
+    }
+    if (availableNucleotides.size() > 0) {
+      final int value = availableNucleotides.removeAt(rand.nextInt(availableNucleotides.size()));
+      final int leftNeighbour = value - 1;
       if ((!promisingNucleotides.contains(leftNeighbour))
           && (availableNucleotides.contains(leftNeighbour)) && rand.nextInt(100) > 50) {
         promisingNucleotides.add(leftNeighbour);
       }
-      final Integer rightNeighbour = Integer.valueOf(value + 1);
+      final int rightNeighbour = value + 1;
       if ((!promisingNucleotides.contains(rightNeighbour))
           && (availableNucleotides.contains(rightNeighbour)) && rand.nextInt(100) > 50) {
         promisingNucleotides.add(rightNeighbour);
@@ -217,17 +227,56 @@ public class Specimen {
       if (availableNucleotides.size() == secondaryNucleotides.size()) {
         return Double.POSITIVE_INFINITY - 1;
       }
-      rmsd = Precision.round(
-          Calculations.FitAndCalculateRMSD(
-              Nucleotide.NucleotidesToListMapped(primaryNucleotides, primaryNucleotidesUsed, true),
-              Nucleotide.NucleotidesToListMapped(
-                  secondaryNucleotides, secondaryNucleotidesMap, false)),
-          3);
+      if (statisticsUpdates > MAXIMUM_STATISTICS_UPDATES) {
+        statisticsUpdates = 0;
+        rmsd = Precision.round(fitness.calculateRmsd(
+            primaryNucleotidesUsed, secondaryNucleotidesMap, statistics), 3);
+      } else {
+        rmsd = Precision.round(statistics.getRmsd(), 3);
+      }
       computeIncorrectlyAlignedResiduesRatio();
     }
     return rmsd;
   }
 
+  // Maps primary nucleotide 'index' to the secondary nucleotide 'value' (-1 removes the mapping)
+  // and updates the statistics.
+  private void setMapping(int index, int value) {
+    final int previous = secondaryNucleotidesMap[index];
+    if (previous == value) {
+      return;
+    }
+    final int representatives = fitness.representatives;
+    if (previous >= 0) {
+      statistics.remove(fitness.primaryBlock, index * representatives, fitness.secondaryBlock,
+          previous * representatives, representatives);
+      mappingHash ^= mappingKey(index, previous);
+    }
+    secondaryNucleotidesMap[index] = value;
+    if (value >= 0) {
+      statistics.add(fitness.primaryBlock, index * representatives, fitness.secondaryBlock,
+          value * representatives, representatives);
+      mappingHash ^= mappingKey(index, value);
+    }
+    statisticsUpdates++;
+  }
+
+  // Zobrist key of primary nucleotide 'index' mapped to secondary nucleotide 'value'
+  // (SplitMix64 finalizer of the packed pair).
+  private static long mappingKey(int index, int value) {
+    long key = (((long) index) << 32 | value) + 0x9E3779B97F4A7C15L;
+    key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+    key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+    return key ^ (key >>> 31);
+  }
+
+  // Points used secondary nucleotide 'second' to the primary nucleotide 'first'.
+  private void replaceFirst(int second, int first) {
+    if (second >= 0 && secondToFirst[second] >= 0) {
+      secondToFirst[second] = first;
+    }
+  }
+
   public void computeIncorrectlyAlignedResiduesRatio() {
     int incorrectlyAlignedResidues = 0;
     if (isSequenceDependent) {
@@ -281,8 +330,8 @@ public class Specimen {
             && (Math.abs(secondaryNucleotidesMap[i - 1] - secondaryNucleotidesMap[i]) > 1)) {
           primaryNucleotidesUsed[i] = -1;
           availableNucleotides.add(secondaryNucleotidesMap[i]);
-          secondToFirst.remove(secondaryNucleotidesMap[i]);
-          secondaryNucleotidesMap[i] = -1;
+          secondToFirst[secondaryNucleotidesMap[i]] = -1;
+          setMapping(i, -1);
           if (!changed) {
             changed = true;
           }
@@ -295,11 +344,11 @@ public class Specimen {
           primaryNucleotidesUsed[index1] = primaryNucleotidesUsed[index2];
           primaryNucleotidesUsed[index2] = temp_primary;
 
-          secondToFirst.replace(secondaryNucleotidesMap[index2], index1);
+          replaceFirst(secondaryNucleotidesMap[index2], index1);
 
           temp_primary = secondaryNucleotidesMap[index1];
-          secondaryNucleotidesMap[index1] = secondaryNucleotidesMap[index2];
-          secondaryNucleotidesMap[index2] = temp_primary;
+          setMapping(index1, secondaryNucleotidesMap[index2]);
+          setMapping(index2, temp_primary);
           if (!changed) {
             changed = true;
           }
@@ -311,12 +360,12 @@ public class Specimen {
           primaryNucleotidesUsed[index1] = primaryNucleotidesUsed[index2];
           primaryNucleotidesUsed[index2] = temp_primary;
 
-          secondToFirst.replace(secondaryNucleotidesMap[index1], index2);
-          secondToFirst.replace(secondaryNucleotidesMap[index2], index1);
+          replaceFirst(secondaryNucleotidesMap[index1], index2);
+          replaceFirst(secondaryNucleotidesMap[index2], index1);
 
           temp_primary = secondaryNucleotidesMap[index1];
-          secondaryNucleotidesMap[index1] = secondaryNucleotidesMap[index2];
-          secondaryNucleotidesMap[index2] = temp_primary;
+          setMapping(index1, secondaryNucleotidesMap[index2]);
+          setMapping(index2, temp_primary);
           if (!changed) {
             changed = true;
           }
@@ -351,25 +400,19 @@ public class Specimen {
         if (primaryNucleotidesUsed[index] == 1) {
           primaryNucleotidesUsed[index] = -1;
           availableNucleotides.add(secondaryNucleotidesMap[index]);
-          secondToFirst.remove(secondaryNucleotidesMap[index]);
-          secondaryNucleotidesMap[index] = -1;
+          secondToFirst[secondaryNucleotidesMap[index]] = -1;
+          setMapping(index, -1);
         } else {
           primaryNucleotidesUsed[index] = 1;
           int selected = -1;
           if ((index - 1 >= 0) && (secondaryNucleotidesMap[index - 1] != -1)) {
             selected = secondaryNucleotidesMap[index - 1] + 1;
-            final Integer val = Integer.valueOf(selected);
-            if (availableNucleotides.contains(val)) {
-              availableNucleotides.remove(val);
-            } else {
+            if (!availableNucleotides.remove(selected)) {
               selected = -1;
               if ((index + 1 < secondaryNucleotidesMap.length)
                   && (secondaryNucleotidesMap[index + 1] != -1)) {
                 selected = secondaryNucleotidesMap[index + 1] - 1;
-                final Integer val2 = Integer.valueOf(selected);
-                if (availableNucleotides.contains(val2)) {
-                  availableNucleotides.remove(val2);
-                } else {
+                if (!availableNucleotides.remove(selected)) {
                   selected = -1;
                 }
               }
@@ -378,9 +421,9 @@ public class Specimen {
           if (selected == -1) {
             selected = getRandomAvailable();
           }
-          secondaryNucleotidesMap[index] = selected;
+          setMapping(index, selected);
           if (selected >= 0) {
-            secondToFirst.put(selected, index);
+            secondToFirst[selected] = index;
           } else {
             primaryNucleotidesUsed[index] = -1;
           }
@@ -397,12 +440,12 @@ public class Specimen {
         primaryNucleotidesUsed[index1] = primaryNucleotidesUsed[index2];
         primaryNucleotidesUsed[index2] = temp_primary;
 
-        secondToFirst.replace(secondaryNucleotidesMap[index1], index2);
-        secondToFirst.replace(secondaryNucleotidesMap[index2], index1);
+        replaceFirst(secondaryNucleotidesMap[index1], index2);
+        replaceFirst(secondaryNucleotidesMap[index2], index1);
 
         temp_primary = secondaryNucleotidesMap[index1];
-        secondaryNucleotidesMap[index1] = secondaryNucleotidesMap[index2];
-        secondaryNucleotidesMap[index2] = temp_primary;
+        setMapping(index1, secondaryNucleotidesMap[index2]);
+        setMapping(index2, temp_primary);
         break;
       case 2:
         int index3 = rand.nextInt(primaryNucleotidesUsed.length);
@@ -415,12 +458,12 @@ public class Specimen {
           index3 = rand.nextInt(primaryNucleotidesUsed.length);
         }
         availableNucleotides.add(secondaryNucleotidesMap[index3]);
-        secondToFirst.remove(secondaryNucleotidesMap[index3]);
+        secondToFirst[secondaryNucleotidesMap[index3]] = -1;
 
         int selected = getRandomAvailable();
-        secondaryNucleotidesMap[index3] = selected;
+        setMapping(index3, selected);
         if (selected >= 0) {
-          secondToFirst.put(selected, index3);
+          secondToFirst[selected] = index3;
         } else {
           primaryNucleotidesUsed[index3] = -1;
         }
@@ -457,8 +500,8 @@ public class Specimen {
       // Remove now not used secondary. Update hashmap of values.
       if (this.secondaryNucleotidesMap[i] >= 0) {
         this.availableNucleotides.add(this.secondaryNucleotidesMap[i]);
-        this.secondToFirst.remove(this.secondaryNucleotidesMap[i]);
-        this.secondaryNucleotidesMap[i] = -1;
+        this.secondToFirst[this.secondaryNucleotidesMap[i]] = -1;
+        setMapping(i, -1);
       }
     }
 
@@ -466,32 +509,32 @@ public class Specimen {
     for (int i = from; i < to; i++) {
       if (this.primaryNucleotidesUsed[i] == 1) {
         int valueToMap = second.secondaryNucleotidesMap[i];
-        if (!this.secondToFirst.containsKey(valueToMap)) {
-          this.secondaryNucleotidesMap[i] = valueToMap;
-          this.secondToFirst.put(valueToMap, i);
-          this.availableNucleotides.remove(Integer.valueOf(valueToMap));
+        if (this.secondToFirst[valueToMap] < 0) {
+          setMapping(i, valueToMap);
+          this.secondToFirst[valueToMap] = i;
+          this.availableNucleotides.remove(valueToMap);
         } else {
           // Value inside not added part
           int chance = rand.nextInt(101);
           if (chance < 45) {
             // Do not change outside part.
-            this.secondaryNucleotidesMap[i] = -1;
+            setMapping(i, -1);
             this.primaryNucleotidesUsed[i] = -1;
           } else if (chance < 100) {
             // Force change in original structure to take this one.
-            this.secondaryNucleotidesMap[i] = valueToMap;
-            int index = this.secondToFirst.get(valueToMap);
-            this.secondToFirst.remove(valueToMap);
+            setMapping(i, valueToMap);
+            int index = this.secondToFirst[valueToMap];
+            this.secondToFirst[valueToMap] = i;
 
             // Reset outside part. Do not add to available as it is used above.
             this.primaryNucleotidesUsed[index] = -1;
-            this.secondaryNucleotidesMap[index] = -1;
+            setMapping(index, -1);
           } else {
             // Add random available
             int selected = getRandomAvailable();
-            secondaryNucleotidesMap[i] = selected;
+            setMapping(i, selected);
             if (selected >= 0) {
-              secondToFirst.put(selected, i);
+              secondToFirst[selected] = i;
             } else {
               this.primaryNucleotidesUsed[i] = -1;
             }
@@ -537,11 +580,13 @@ public class Specimen {
       return false;
     }
     Specimen specimen = (Specimen) o;
-    return Objects.deepEquals(secondaryNucleotidesMap, specimen.secondaryNucleotidesMap);
+    return mappingHash == specimen.mappingHash
+        && Arrays.equals(secondaryNucleotidesMap, specimen.secondaryNucleotidesMap);
   }
 
+  // Consistent with equals, maintained by every change of the map.
   @Override
   public int hashCode() {
-    return Objects.hash(secondaryNucleotidesMap);
+    return Long.hashCode(mappingHash);
   }
 }
@@ -0,0 +1,72 @@
+package edu.put.ma.rna_aligner;
+
+import java.util.ArrayList;
+
+// RMSD of specimens of a single pair of structures. Representatives of both structures are kept
+// in primitive blocks shared by all specimens and mapped atoms are accumulated straight from
+// them into a per-thread 'RmsdAccumulator', so the evaluation does not allocate.
+// Structures are ordered the same way as in 'Specimen' (primary is the smaller one).
+public class SpecimenFitness {
+  public final CoordinatesBlock primaryBlock;
+  public final CoordinatesBlock secondaryBlock;
+  public final int representatives;
+
+  private final ThreadLocal<RmsdAccumulator> accumulators =
+      ThreadLocal.withInitial(() -> new RmsdAccumulator());
+
+  public SpecimenFitness(final ArrayList<Nucleotide> _primaryNucleotides,
+      final ArrayList<Nucleotide> _secondaryNucleotides) {
+    ArrayList<Nucleotide> primary = _primaryNucleotides;
+    ArrayList<Nucleotide> secondary = _secondaryNucleotides;
+    if (primary.size() > secondary.size()) {
+      primary = _secondaryNucleotides;
+      secondary = _primaryNucleotides;
+    }
+    primaryBlock = CoordinatesBlock.fromList(Nucleotide.NucleotidesToList(primary));
+    secondaryBlock = CoordinatesBlock.fromList(Nucleotide.NucleotidesToList(secondary));
+    representatives = primary.isEmpty() ? 0 : primary.get(0).representatives.size();
+  }
+
+  // Blocks are already ordered (primary is the smaller one) and are shared, not copied.
+  public SpecimenFitness(final CoordinatesBlock _primaryBlock,
+      final CoordinatesBlock _secondaryBlock, int _representatives) {
+    primaryBlock = _primaryBlock;
+    secondaryBlock = _secondaryBlock;
+    representatives = _representatives;
+  }
+
+  // Minimal RMSD of used primary nucleotides and secondary nucleotides in the order of the map.
+  // Returns -1 if numbers of used primary and mapped secondary nucleotides are different.
+  public double calculateRmsd(final int[] primaryNucleotidesUsed,
+      final int[] secondaryNucleotidesMap) {
+    return calculateRmsd(primaryNucleotidesUsed, secondaryNucleotidesMap, accumulators.get());
+  }
+
+  // Same as above, mapped atoms are left in the given accumulator.
+  public double calculateRmsd(final int[] primaryNucleotidesUsed,
+      final int[] secondaryNucleotidesMap, RmsdAccumulator accumulator) {
+    accumulator.clear();
+    // k-th used primary nucleotide is paired with the k-th mapped secondary one.
+    int j = 0;
+    for (int i = 0; i < primaryNucleotidesUsed.length; i++) {
+      if (primaryNucleotidesUsed[i] == 1) {
+        while (j < secondaryNucleotidesMap.length && secondaryNucleotidesMap[j] < 0) {
+          j++;
+        }
+        if (j == secondaryNucleotidesMap.length) {
+          return -1;
+        }
+        accumulator.add(primaryBlock, i * representatives, secondaryBlock,
+            secondaryNucleotidesMap[j] * representatives, representatives);
+        j++;
+      }
+    }
+    while (j < secondaryNucleotidesMap.length && secondaryNucleotidesMap[j] < 0) {
+      j++;
+    }
+    if (j < secondaryNucleotidesMap.length) {
+      return -1;
+    }
+    return accumulator.getRmsd();
+  }
+}
@@ -0,0 +1,164 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Coarse-grained structures (with their distance matrices and reference indexes) kept between
+// the jobs of a single process, e.g. the same reference aligned against many models. Entries are
+// keyed by the file path, its modification time and size and the parse options, so a changed
+// file is read again.
+// Structures are weighted by the estimated memory of their nucleotides, distance matrix and
+// reference index (growing with n^2), the least recently used ones are dropped when the total
+// exceeds 'budget' bytes. The last read structure is always kept.
+public class StructureCache {
+  // Rough heap estimates, see 'weight'.
+  private static final long NUCLEOTIDE_BYTES = 512;
+  private static final long PAIR_BYTES = 48;
+  public static final class Structure {
+    public final ArrayList<Nucleotide> nucleotides;
+    private DistanceMatrix distances = null;
+    private ReferenceIndex index = null;
+
+    Structure(final ArrayList<Nucleotide> _nucleotides) {
+      nucleotides = _nucleotides;
+    }
+
+    // Computed on the first use (GEOS target or reference index).
+    public synchronized DistanceMatrix distances() {
+      if (distances == null) {
+        distances = new DistanceMatrix(nucleotides);
+      }
+      return distances;
+    }
+
+    // Computed on the first use as a reference.
+    public synchronized ReferenceIndex index() {
+      if (index == null) {
+        index = new ReferenceIndex(nucleotides, distances());
+      }
+      return index;
+    }
+
+    // Estimated bytes with both the distance matrix and the reference index computed. Every pair
+    // has one distance per representative and one NData in the reference index.
+    long weight() {
+      final long size = nucleotides.size();
+      final long representatives = nucleotides.get(0).representatives.size();
+      return size * NUCLEOTIDE_BYTES
+          + size * (size - 1) / 2 * (PAIR_BYTES + representatives * Double.BYTES);
+    }
+  }
+
+  // Structure read once, by the first caller. Others wait for it instead of reading it again.
+  private static final class Entry {
+    private Structure structure = null;
+    // Guarded by the cache lock, 0 until the structure is read.
+    long weight = 0;
+
+    synchronized Structure load(final String path, final String inputType,
+        final boolean allowIncomplete) {
+      if (structure == null) {
+        final ArrayList<Nucleotide> nucleotides =
+            new StructureParser().StructureToCoarseGrained(path, inputType, allowIncomplete);
+        if (nucleotides.isEmpty()) {
+          throw new IllegalArgumentException("No nucleotides read from " + path);
+        }
+        structure = new Structure(nucleotides);
+      }
+      return structure;
+    }
+  }
+
+  private final long budget;
+  private final LinkedHashMap<String, Entry> structures =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // Sum of weights of all entries, guarded by 'structures'.
+  private long weight = 0;
+
+  // Budget in bytes, Long.MAX_VALUE keeps all structures.
+  public StructureCache(long _budget) {
+    budget = Math.max(0, _budget);
+  }
+
+  public Structure get(final String path, final String inputType, final boolean allowIncomplete) {
+    final String key = key(path, inputType, allowIncomplete);
+    Entry entry;
+    synchronized (structures) {
+      entry = structures.get(key);
+      if (entry == null) {
+        entry = new Entry();
+        structures.put(key, entry);
+      }
+    }
+    // Read outside of the cache lock, so other structures can be served meanwhile.
+    final Structure structure;
+    try {
+      structure = entry.load(path, inputType, allowIncomplete);
+    } catch (RuntimeException e) {
+      synchronized (structures) {
+        structures.remove(key, entry);
+      }
+      throw e;
+    }
+    synchronized (structures) {
+      if (entry.weight == 0 && structures.get(key) == entry) {
+        entry.weight = structure.weight();
+        weight += entry.weight;
+        evict(entry);
+      }
+    }
+    return structure;
+  }
+
+  // Drops the least recently used structures above the budget, except 'kept'. Structures being
+  // read have no weight yet and are left for their readers.
+  private void evict(final Entry kept) {
+    final Iterator<Entry> entries = structures.values().iterator();
+    while (weight > budget && entries.hasNext()) {
+      final Entry entry = entries.next();
+      if (entry != kept && entry.weight > 0) {
+        weight -= entry.weight;
+        entries.remove();
+      }
+    }
+  }
+
+  // Estimated bytes of all kept structures.
+  public long weight() {
+    synchronized (structures) {
+      return weight;
+    }
+  }
+
+  public int size() {
+    synchronized (structures) {
+      return structures.size();
+    }
+  }
+
+  private static String key(final String path, final String inputType,
+      final boolean allowIncomplete) {
+    final Path file = Paths.get(path).toAbsolutePath().normalize();
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      return new StringBuilder(file.toString())
+          .append('\t')
+          .append(attributes.lastModifiedTime().toMillis())
+          .append('\t')
+          .append(attributes.size())
+          .append('\t')
+          .append(inputType)
+          .append('\t')
+          .append(allowIncomplete)
+          .toString();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot read " + path + ": " + e.getMessage());
+    }
+  }
+}
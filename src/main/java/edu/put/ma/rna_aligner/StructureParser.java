@@ -4,13 +4,19 @@ import static java.util.Map.entry;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -85,6 +91,18 @@ public class StructureParser {
 
   public ArrayList<Nucleotide> StructureToCoarseGrained(
       final String filename, final String inputType, final boolean allowIncomplete) {
+    // Direct reader first, full BioCommons models are built only if it finds no nucleotides.
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+      final boolean isPdbInput =
+          (inputType == "auto") ? isPdbFile(filename) : (inputType != "cif");
+      final ArrayList<Nucleotide> direct = readCoarseGrained(reader, isPdbInput);
+      if (!direct.isEmpty()) {
+        return direct;
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn(String.format("Direct reading of %s failed: %s", filename, e.getMessage()));
+    }
     ArrayList<Nucleotide> result = new ArrayList<Nucleotide>();
     boolean isPdb = true;
 
@@ -110,163 +128,721 @@ public class StructureParser {
       // Only consider first model
       //for (int i = model_num - 1; i < size; ++i) {
         final PdbModel model = (isPdb) ? pdbModels.get(0).filteredNewInstance(MoleculeType.RNA) : cifModels.get(0).filteredNewInstance(MoleculeType.RNA);
-        double bsgcCounter = 0;
-        double rbgcCounter = 0;
-        double restCounter = 0;
-        Coordinates bsgcAtom = new Coordinates();
-        Coordinates rbgcAtom = new Coordinates();
-        Coordinates restAtom = new Coordinates();
-
-        String currentResidueName = null;
-        String currentAtomKey = null;
-        String currentChain = null;
-        String currentResidueNumber = null;
-
-        for (final PdbAtomLine atom : model.atoms()) {
-          final String atomName = atom.atomName();
-          final String key = (StringUtils.isEmpty(atom.insertionCode()))
-              ? new StringBuilder(atom.chainIdentifier()).append(atom.residueNumber()).toString()
-              : new StringBuilder(atom.chainIdentifier())
-                    .append(atom.residueNumber())
-                    .append(atom.insertionCode())
-                    .toString();
-          final String chain = new StringBuilder(atom.chainIdentifier()).toString();
-          final String residueNumber = (StringUtils.isEmpty(atom.insertionCode()))
-              ? String.valueOf(atom.residueNumber())
-              : new StringBuilder(String.valueOf(atom.residueNumber()))
-                    .append(atom.insertionCode())
-                    .toString();
-
-          final String residueName = getOneLetterCode(atom.residueName());
-          if (residueName.isBlank()) {
-            LOGGER.warn(
-                String.format("Found incompatible atom residue name: %s", atom.residueName()));
-            continue;
-          }
-          if (StringUtils.isBlank(currentAtomKey)) {
-            currentAtomKey = key;
-          }
-          if (StringUtils.isBlank(currentResidueName)) {
-            currentResidueName = residueName;
-          }
-          if (StringUtils.isBlank(currentChain)) {
-            currentChain = chain;
-          }
-          if (StringUtils.isBlank(currentResidueNumber)) {
-            currentResidueNumber = residueNumber;
-          }
+        result = modelToCoarseGrained(model, allowIncomplete);
+      //} // for
+      // Only if no exception was thrown
+      // It is possible that auto detect did not work properly.
+      // We can try and run the parser again with different parse type.
+      if (result.size() == 0 && inputType == "auto") {
+        LOGGER.warn(
+            "Parsed structure without any atoms to analyze. Trying another type pdb/cif instead.");
+        return (isPdb) ? StructureToCoarseGrained(filename, "cif", allowIncomplete)
+                       : StructureToCoarseGrained(filename, "pdb", allowIncomplete);
+      }
+    } catch (IOException|IllegalArgumentException e) {
+      e.printStackTrace();
+    }
 
-          if (!StringUtils.equals(currentAtomKey, key)) {
-            if (bsgcCounter > 0) {
-              bsgcAtom.x = bsgcAtom.x / bsgcCounter;
-              bsgcAtom.y = bsgcAtom.y / bsgcCounter;
-              bsgcAtom.z = bsgcAtom.z / bsgcCounter;
-            }
-            if (rbgcCounter > 0) {
-              rbgcAtom.x = rbgcAtom.x / rbgcCounter;
-              rbgcAtom.y = rbgcAtom.y / rbgcCounter;
-              rbgcAtom.z = rbgcAtom.z / rbgcCounter;
-            }
-            if (restCounter > 0) {
-              restAtom.x = restAtom.x / restCounter;
-              restAtom.y = restAtom.y / restCounter;
-              restAtom.z = restAtom.z / restCounter;
-            }
-//            if ((restCounter == rest_atoms.size()) && (rbgcCounter == ryboze_atoms.size())
-//                && (bsgcCounter == getBaseAtomsCount(currentResidueName))) {
-//          Allow incomplete but must be at least one from each
-            if ((restCounter >= 1) && (rbgcCounter >= 1)
-                && (bsgcCounter >= 1 )) {
-              ArrayList<Coordinates> grained =
-                  new ArrayList<Coordinates>(Arrays.asList(bsgcAtom, rbgcAtom, restAtom));
-              result.add(new Nucleotide(grained, currentResidueName, currentAtomKey, currentChain, currentResidueNumber));
-            } else {
-              if (allowIncomplete && bsgcCounter >= 1. && rbgcCounter >= 1. && restCounter >= 1.) {
-                final ArrayList<Coordinates> grained =
-                    new ArrayList<Coordinates>(Arrays.asList(bsgcAtom, rbgcAtom, restAtom));
-                result.add(new Nucleotide(grained, currentResidueName, currentAtomKey, currentChain, currentResidueNumber));
-                LOGGER.warn(String.format("%s %s.", restCounter, rest_atoms.size()));
-                LOGGER.warn(String.format("%s %s.", rbgcCounter, ryboze_atoms.size()));
-                LOGGER.warn(
-                    String.format("%s %s.", bsgcCounter, getBaseAtomsCount(currentResidueName)));
-                LOGGER.warn(String.format("Incomplete residue %s.", currentAtomKey));
-              }
-            }
-            // Reset
-            currentAtomKey = key;
-            currentResidueName = residueName;
-            currentChain = chain;
-            currentResidueNumber = residueNumber;
-            bsgcAtom = new Coordinates();
-            rbgcAtom = new Coordinates();
-            restAtom = new Coordinates();
-            bsgcCounter = 0;
-            rbgcCounter = 0;
-            restCounter = 0;
-          }
+    if (result.size() == 0) {
+        LOGGER.warn(
+            "Parsed structure without any atoms to analyze.");
+    }
 
-          for (String name : rest_atoms) {
-            if (name.equals(atomName)) {
-              restAtom.x = restAtom.x + atom.x();
-              restAtom.y = restAtom.y + atom.y();
-              restAtom.z = restAtom.z + atom.z();
-              restCounter++;
-              break;
-            }
-          }
-          for (String name : ryboze_atoms) {
-            if (name.equals(atomName)) {
-              rbgcAtom.x = rbgcAtom.x + atom.x();
-              rbgcAtom.y = rbgcAtom.y + atom.y();
-              rbgcAtom.z = rbgcAtom.z + atom.z();
-              rbgcCounter++;
-              break;
-            }
-          }
+    return result;
+  }
 
-          final ArrayList<String> base_atoms;
-          if (residueName.equals("U")) {
-            base_atoms = U_atoms;
-          } else if (residueName.equals("C")) {
-            base_atoms = C_atoms;
-          } else if (residueName.equals("A")) {
-            base_atoms = A_atoms;
-          } else { // G
-            base_atoms = G_atoms;
-          }
+  // Streams coarse-grained models of a multi-model (e.g. NMR or MD ensemble) file: PDB MODEL/ENDMDL
+  // blocks or mmCIF _atom_site rows grouped by pdbx_PDB_model_num. The file is read line by line
+  // and only the current model is kept in memory, so it can be larger than the heap. The consumer
+  // gets the model number and its nucleotides (empty if the model could not be parsed).
+  // Returns the number of models.
+  public int StreamModelsToCoarseGrained(final String filename, final String inputType,
+      final boolean allowIncomplete, final BiConsumer<Integer, ArrayList<Nucleotide>> consumer)
+      throws IOException {
+    final boolean isPdb = (inputType == "auto") ? isPdbFile(filename) : (inputType != "cif");
+    final BiConsumer<Integer, String> parser = (number, content) -> {
+      ArrayList<Nucleotide> model = new ArrayList<Nucleotide>();
+      try {
+        model = readCoarseGrained(new BufferedReader(new StringReader(content)), isPdb);
+        final List<? extends PdbModel> models = (!model.isEmpty())
+            ? Collections.emptyList()
+            : (isPdb) ? new PdbParser(false).parse(content) : CifParser.parse(content);
+        if (!models.isEmpty()) {
+          model = modelToCoarseGrained(
+              models.get(0).filteredNewInstance(MoleculeType.RNA), allowIncomplete);
+        }
+      } catch (IOException | RuntimeException e) {
+        LOGGER.warn(String.format("Model %d: %s", number, e.getMessage()));
+      }
+      consumer.accept(number, model);
+    };
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+      return (isPdb) ? streamPdbModels(reader, parser) : streamCifModels(reader, parser);
+    }
+  }
 
-          for (String name : base_atoms) {
-            if (name.equals(atomName)) {
-              bsgcAtom.x = bsgcAtom.x + atom.x();
-              bsgcAtom.y = bsgcAtom.y + atom.y();
-              bsgcAtom.z = bsgcAtom.z + atom.z();
-              bsgcCounter++;
-              break;
-            }
-          }
+  // Atoms of every MODEL/ENDMDL block, file without MODEL records is a single model.
+  private static int streamPdbModels(final BufferedReader reader,
+      final BiConsumer<Integer, String> parser) throws IOException {
+    final StringBuilder content = new StringBuilder();
+    int models = 0;
+    int number = 1;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith("MODEL")) {
+        if (content.length() > 0) {
+          parser.accept(number, content.toString());
+          content.setLength(0);
+          models++;
+        }
+        final String value = StringUtils.trim(StringUtils.substring(line, 5));
+        number = StringUtils.isNumeric(value) ? Integer.parseInt(value) : models + 1;
+      } else if (line.startsWith("ATOM") || line.startsWith("HETATM") || line.startsWith("TER")) {
+        content.append(line).append('\n');
+      } else if (line.startsWith("ENDMDL") && content.length() > 0) {
+        parser.accept(number, content.toString());
+        content.setLength(0);
+        models++;
+        number = models + 1;
+      }
+    }
+    if (content.length() > 0) {
+      parser.accept(number, content.toString());
+      models++;
+    }
+    return models;
+  }
+
+  // Rows of the _atom_site loop grouped by consecutive pdbx_PDB_model_num values, every group is
+  // passed with the loop header.
+  private static int streamCifModels(final BufferedReader reader,
+      final BiConsumer<Integer, String> parser) throws IOException {
+    final AtomSiteLoop loop = new AtomSiteLoop();
+    final StringBuilder header = new StringBuilder();
+    final StringBuilder content = new StringBuilder();
+    int models = 0;
+    int[] bounds = new int[0];
+    String number = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      final String trimmed = line.trim();
+      final int kind = loop.next(trimmed);
+      if (kind == AtomSiteLoop.HEADER) {
+        if (header.length() == 0) {
+          header.append("data_model\nloop_\n");
+        }
+        header.append(trimmed).append('\n');
+        continue;
+      }
+      if (kind != AtomSiteLoop.ROW) {
+        continue;
+      }
+      if (bounds.length < loop.columns.size() * 2) {
+        bounds = new int[loop.columns.size() * 2];
+      }
+      final int count = cifTokens(trimmed, bounds);
+      final int model = cifValue(trimmed, bounds, count, loop.column("pdbx_PDB_model_num"));
+      if (number == null || !cifEquals(trimmed, bounds, model, number)) {
+        if (content.length() > 0) {
+          parser.accept(toModelNumber(number, models), header.toString() + content);
+          content.setLength(0);
+          models++;
+        }
+        number = cifString(trimmed, bounds, model);
+      }
+      content.append(trimmed).append('\n');
+    }
+    if (content.length() > 0) {
+      parser.accept(toModelNumber(number, models), header.toString() + content);
+      models++;
+    }
+    return models;
+  }
+
+  // Line by line state of the mmCIF _atom_site loop, used by the model stream and the direct
+  // reader.
+  private static final class AtomSiteLoop {
+    static final int OTHER = 0;
+    static final int HEADER = 1;
+    static final int ROW = 2;
+    // First line after the rows (other item, comment or data block), the loop is closed.
+    static final int END = 3;
+
+    // Column indexes by item names without the '_atom_site.' prefix.
+    final HashMap<String, Integer> columns = new HashMap<String, Integer>();
+    private boolean inLoop = false;
+    private boolean inAtomSite = false;
+
+    // Kind of the trimmed line.
+    int next(final String trimmed) {
+      if (trimmed.equals("loop_")) {
+        inLoop = true;
+        inAtomSite = false;
+        return OTHER;
+      }
+      if (trimmed.startsWith("_atom_site.")) {
+        inAtomSite = inLoop;
+        if (!inAtomSite) {
+          return OTHER;
+        }
+        columns.putIfAbsent(StringUtils.split(trimmed)[0].substring(11), columns.size());
+        return HEADER;
+      }
+      if (!inAtomSite || trimmed.isEmpty()) {
+        return OTHER;
+      }
+      if (trimmed.startsWith("_") || trimmed.startsWith("#") || trimmed.startsWith("data_")) {
+        inLoop = false;
+        inAtomSite = false;
+        return END;
+      }
+      return ROW;
+    }
+
+    // Index of the column, -1 if it is missing.
+    int column(final String name) {
+      final Integer index = columns.get(name);
+      return (index == null) ? -1 : index;
+    }
+  }
+
+  // Columns of the _atom_site loop read by the direct reader, -1 for missing ones. Author
+  // columns are preferred, label ones are used when they are missing or unknown.
+  private static final class AtomSiteColumns {
+    final int model;
+    final int altLoc;
+    final int authAtom;
+    final int atom;
+    final int authResidue;
+    final int residue;
+    final int authChain;
+    final int chain;
+    final int authSequence;
+    final int sequence;
+    final int insertion;
+    final int x;
+    final int y;
+    final int z;
+
+    AtomSiteColumns(final AtomSiteLoop loop) {
+      model = loop.column("pdbx_PDB_model_num");
+      altLoc = loop.column("label_alt_id");
+      authAtom = loop.column("auth_atom_id");
+      atom = loop.column("label_atom_id");
+      authResidue = loop.column("auth_comp_id");
+      residue = loop.column("label_comp_id");
+      authChain = loop.column("auth_asym_id");
+      chain = loop.column("label_asym_id");
+      authSequence = loop.column("auth_seq_id");
+      sequence = loop.column("label_seq_id");
+      insertion = loop.column("pdbx_PDB_ins_code");
+      x = loop.column("Cartn_x");
+      y = loop.column("Cartn_y");
+      z = loop.column("Cartn_z");
+    }
+  }
+
+  private static int toModelNumber(final String value, int models) {
+    return StringUtils.isNumeric(value) ? Integer.parseInt(value) : models + 1;
+  }
+
+  // Same detection as in StructureToCoarseGrained, but only up to the first atom record.
+  private static boolean isPdbFile(final String filename) throws IOException {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.indexOf("_loop") != -1 || line.indexOf("loop_") != -1) {
+          return false;
+        }
+        if (line.startsWith("ATOM") || line.startsWith("HETATM") || line.startsWith("MODEL")) {
+          return true;
+        }
+      }
+    }
+    return true;
+  }
+
+  // Group of every atom used by the coarse-grained representation, per one-letter code:
+  // 0 - base, 1 - ribose, 2 - rest (backbone). Built from the atom lists above.
+  private static final Map<String, AtomGroups> atom_groups = Map.of(
+      "A", new AtomGroups(A_atoms), "C", new AtomGroups(C_atoms), "G", new AtomGroups(G_atoms),
+      "U", new AtomGroups(U_atoms));
+  // DNA residues are dropped like by the RNA filter of BioCommons models.
+  private static final List<String> dna_residues = Arrays.asList("DA", "DC", "DG", "DT", "DU");
+
+  // Atom names packed into an int (up to 4 ASCII characters), so atoms are matched without
+  // creating a string per atom.
+  private static final class AtomGroups {
+    final int[] names;
+    final int[] groups;
+
+    AtomGroups(final ArrayList<String> base_atoms) {
+      final int size = base_atoms.size() + ryboze_atoms.size() + rest_atoms.size();
+      names = new int[size];
+      groups = new int[size];
+      int index = 0;
+      for (int group = 0; group < 3; group++) {
+        final ArrayList<String> atoms =
+            (group == 0) ? base_atoms : (group == 1) ? ryboze_atoms : rest_atoms;
+        for (final String name : atoms) {
+          names[index] = packAtomName(name, 0, name.length());
+          groups[index++] = group;
+        }
+      }
+    }
+
+    // Group of the packed atom name, -1 for atoms not used.
+    int group(final int name) {
+      for (int i = 0; i < names.length; i++) {
+        if (names[i] == name) {
+          return groups[i];
         }
+      }
+      return -1;
+    }
+  }
+
+  // Atom name from the characters start ... end - 1, without spaces. -1 if it does not fit.
+  private static int packAtomName(final String line, final int start, final int end) {
+    int packed = 0;
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      final char c = line.charAt(i);
+      if (c == ' ') {
+        continue;
+      }
+      if (c > 127 || ++length > 4) {
+        return -1;
+      }
+      packed = (packed << 8) | c;
+    }
+    return packed;
+  }
+
+  // Sums of the coordinates of one residue, averaged into its three centroids.
+  private static final class ResidueCentroids {
+    final String key;
+    final String code;
+    final String chain;
+    final String number;
+    final AtomGroups groups;
+    final double[] sums = new double[9];
+    final int[] counts = new int[3];
+
+    ResidueCentroids(final String _key, final String _code, final String _chain,
+        final String _number) {
+      key = _key;
+      code = _code;
+      chain = _chain;
+      number = _number;
+      groups = atom_groups.get(code);
+    }
+
+    void add(final int group, double x, double y, double z) {
+      sums[group * 3] += x;
+      sums[group * 3 + 1] += y;
+      sums[group * 3 + 2] += z;
+      counts[group]++;
+    }
 
-        // Average and add last residue.
-        if (bsgcCounter >= 1.) {
+    // Null unless all three centroids have at least one atom.
+    Nucleotide toNucleotide() {
+      if (counts[0] < 1 || counts[1] < 1 || counts[2] < 1) {
+        return null;
+      }
+      final ArrayList<Coordinates> grained = new ArrayList<Coordinates>(3);
+      for (int group = 0; group < 3; group++) {
+        grained.add(new Coordinates(sums[group * 3] / counts[group],
+            sums[group * 3 + 1] / counts[group], sums[group * 3 + 2] / counts[group]));
+      }
+      return new Nucleotide(grained, code, key, chain, number);
+    }
+  }
+
+  // Nucleotides of the direct reader. Readers resolve names only when the residue changes.
+  // Residues without a one-letter code (DNA, ligands, water) are skipped by the readers and do not
+  // end the current nucleotide.
+  private static final class CoarseGrainedBuilder {
+    final ArrayList<Nucleotide> result = new ArrayList<Nucleotide>();
+    // One-letter codes by residue name, "" for skipped residues.
+    private final HashMap<String, String> codes = new HashMap<String, String>();
+    private ResidueCentroids residue = null;
+
+    // One-letter code of the residue, blank if it is skipped.
+    String code(final String name) {
+      String code = codes.get(name);
+      if (code == null) {
+        code = dna_residues.contains(name.toUpperCase()) ? "" : getOneLetterCode(name);
+        codes.put(name, code);
+      }
+      return code;
+    }
+
+    void startResidue(final String code, final String chain, final String number) {
+      finishResidue();
+      residue = new ResidueCentroids(chain + number, code, chain, number);
+    }
+
+    // Group of the atom in the current residue, -1 if it is not used.
+    int group(final String line, final int start, final int end) {
+      return (residue == null) ? -1 : residue.groups.group(packAtomName(line, start, end));
+    }
+
+    void add(final int group, double x, double y, double z) {
+      residue.add(group, x, y, z);
+    }
+
+    ArrayList<Nucleotide> finish() {
+      finishResidue();
+      return result;
+    }
+
+    private void finishResidue() {
+      if (residue != null) {
+        final Nucleotide nucleotide = residue.toNucleotide();
+        if (nucleotide != null) {
+          result.add(nucleotide);
+        }
+        residue = null;
+      }
+    }
+  }
+
+  // Coarse-grained nucleotides of the first model read straight from PDB ATOM/HETATM columns or
+  // the mmCIF _atom_site loop, in a single pass and without building BioCommons models. Only
+  // blank or the first ('A', '1') alternate locations are used. Atom lines are not split into
+  // strings, names are created only when the residue changes.
+  private static ArrayList<Nucleotide> readCoarseGrained(final BufferedReader reader,
+      final boolean isPdb) throws IOException {
+    return (isPdb) ? readPdbCoarseGrained(reader) : readCifCoarseGrained(reader);
+  }
+
+  private static ArrayList<Nucleotide> readPdbCoarseGrained(final BufferedReader reader)
+      throws IOException {
+    final CoarseGrainedBuilder builder = new CoarseGrainedBuilder();
+    // First lines of the current and of the last skipped residue.
+    String residueLine = null;
+    String skippedLine = null;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.startsWith("ENDMDL")) {
+        break;
+      }
+      if (!(line.startsWith("ATOM") || line.startsWith("HETATM")) || line.length() < 54) {
+        continue;
+      }
+      final char altLoc = line.charAt(16);
+      if (altLoc != ' ' && altLoc != 'A' && altLoc != '1') {
+        continue;
+      }
+      // Residue is identified by the chain, residue number and insertion code (columns 22-27),
+      // skipped one also by its name (columns 18-20).
+      if (residueLine == null || !line.regionMatches(21, residueLine, 21, 6)) {
+        if (skippedLine != null && line.regionMatches(17, skippedLine, 17, 10)) {
+          continue;
+        }
+        final String code = builder.code(line.substring(17, 20).trim());
+        if (code.isBlank()) {
+          skippedLine = line;
+          continue;
+        }
+        residueLine = line;
+        builder.startResidue(code, line.substring(21, 22).trim(),
+            Integer.parseInt(line.substring(22, 26).trim()) + line.substring(26, 27).trim());
+      }
+      final int group = builder.group(line, 12, 16);
+      if (group >= 0) {
+        builder.add(group, parseDecimal(line, 30, 38), parseDecimal(line, 38, 46),
+            parseDecimal(line, 46, 54));
+      }
+    }
+    return builder.finish();
+  }
+
+  private static ArrayList<Nucleotide> readCifCoarseGrained(final BufferedReader reader)
+      throws IOException {
+    final CoarseGrainedBuilder builder = new CoarseGrainedBuilder();
+    final AtomSiteLoop loop = new AtomSiteLoop();
+    AtomSiteColumns columns = null;
+    int[] bounds = null;
+    String firstModel = null;
+    final CifResidue residue = new CifResidue();
+    final CifResidue skipped = new CifResidue();
+
+    String line;
+    while ((line = reader.readLine()) != null) {
+      final String row = line.trim();
+      final int kind = loop.next(row);
+      if (kind == AtomSiteLoop.END) {
+        break;
+      }
+      if (kind != AtomSiteLoop.ROW) {
+        continue;
+      }
+      if (columns == null) {
+        columns = new AtomSiteColumns(loop);
+        bounds = new int[loop.columns.size() * 2];
+      }
+      final int count = cifTokens(row, bounds);
+      final int model = cifValue(row, bounds, count, columns.model);
+      if (firstModel == null) {
+        firstModel = cifString(row, bounds, model);
+      } else if (!cifEquals(row, bounds, model, firstModel)) {
+        break;
+      }
+      final int altLoc = cifValue(row, bounds, count, columns.altLoc);
+      if (altLoc >= 0 && (bounds[altLoc * 2 + 1] - bounds[altLoc * 2] != 1
+          || (row.charAt(bounds[altLoc * 2]) != 'A' && row.charAt(bounds[altLoc * 2]) != '1'))) {
+        continue;
+      }
+      final int name = cifValue(row, bounds, count, columns.authResidue, columns.residue);
+      final int chain = cifValue(row, bounds, count, columns.authChain, columns.chain);
+      final int sequence = cifValue(row, bounds, count, columns.authSequence, columns.sequence);
+      final int insertion = cifValue(row, bounds, count, columns.insertion);
+      // Same rules as for PDB lines.
+      if (!residue.matches(row, bounds, chain, sequence, insertion)) {
+        if (skipped.matches(row, bounds, chain, sequence, insertion)
+            && cifEquals(row, bounds, name, skipped.name)) {
+          continue;
+        }
+        final String code = builder.code(cifString(row, bounds, name));
+        if (code.isBlank()) {
+          skipped.set(row, bounds, name, chain, sequence, insertion);
+          continue;
+        }
+        residue.set(row, bounds, name, chain, sequence, insertion);
+        builder.startResidue(code, residue.chain, residue.sequence + residue.insertion);
+      }
+      final int atom = cifValue(row, bounds, count, columns.authAtom, columns.atom);
+      final int group =
+          (atom < 0) ? -1 : builder.group(row, bounds[atom * 2], bounds[atom * 2 + 1]);
+      if (group >= 0) {
+        builder.add(group, cifDecimal(row, bounds, count, columns.x),
+            cifDecimal(row, bounds, count, columns.y), cifDecimal(row, bounds, count, columns.z));
+      }
+    }
+    return builder.finish();
+  }
+
+  // Residue columns of an mmCIF row, compared in place with the next rows.
+  private static final class CifResidue {
+    String name = null;
+    String chain = null;
+    String sequence = null;
+    String insertion = null;
+
+    boolean matches(final String row, final int[] bounds, int chainColumn, int sequenceColumn,
+        int insertionColumn) {
+      return name != null && cifEquals(row, bounds, chainColumn, chain)
+          && cifEquals(row, bounds, sequenceColumn, sequence)
+          && cifEquals(row, bounds, insertionColumn, insertion);
+    }
+
+    void set(final String row, final int[] bounds, int nameColumn, int chainColumn,
+        int sequenceColumn, int insertionColumn) {
+      name = cifString(row, bounds, nameColumn);
+      chain = cifString(row, bounds, chainColumn);
+      sequence = cifString(row, bounds, sequenceColumn);
+      insertion = cifString(row, bounds, insertionColumn);
+    }
+  }
+
+  // Fixed-point decimal of the PDB coordinate column or CIF value, without a substring.
+  private static double parseDecimal(final String line, int start, int end) {
+    while (start < end && line.charAt(start) == ' ') {
+      start++;
+    }
+    boolean negative = false;
+    if (start < end && (line.charAt(start) == '-' || line.charAt(start) == '+')) {
+      negative = line.charAt(start) == '-';
+      start++;
+    }
+    long value = 0;
+    long scale = 1;
+    boolean fraction = false;
+    boolean digits = false;
+    for (int i = start; i < end; i++) {
+      final char c = line.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = value * 10 + (c - '0');
+        digits = true;
+        if (fraction) {
+          scale *= 10;
+        }
+      } else if (c == '.' && !fraction) {
+        fraction = true;
+      } else if (c == ' ' && i > start) {
+        break;
+      } else {
+        // Unusual notation (e.g. exponent).
+        return Double.parseDouble(line.substring(start, end).trim()) * (negative ? -1 : 1);
+      }
+    }
+    if (!digits) {
+      throw new NumberFormatException("Missing coordinate: " + line);
+    }
+    final double result = (double) value / scale;
+    return negative ? -result : result;
+  }
+
+  // Splits the row into whitespace separated values, quoted values can contain spaces. Value i is
+  // row[bounds[2 * i] ... bounds[2 * i + 1]), without quotes and the padding inside them (some
+  // writers keep the PDB padding of atom names, e.g. " O5'"). Returns the number of values.
+  private static int cifTokens(final String row, final int[] bounds) {
+    int count = 0;
+    int position = 0;
+    while (position < row.length() && count * 2 < bounds.length) {
+      while (position < row.length() && Character.isWhitespace(row.charAt(position))) {
+        position++;
+      }
+      if (position == row.length()) {
+        break;
+      }
+      final char quote = row.charAt(position);
+      int start = position;
+      int end;
+      if (quote == '\'' || quote == '"') {
+        end = row.indexOf(quote, position + 1);
+        end = (end < 0) ? row.length() : end;
+        position = end + 1;
+        start++;
+        while (start < end && row.charAt(start) == ' ') {
+          start++;
+        }
+        while (end > start && row.charAt(end - 1) == ' ') {
+          end--;
+        }
+      } else {
+        end = position;
+        while (end < row.length() && !Character.isWhitespace(row.charAt(end))) {
+          end++;
+        }
+        position = end;
+      }
+      bounds[count * 2] = start;
+      bounds[count * 2 + 1] = end;
+      count++;
+    }
+    return count;
+  }
+
+  // Column if the row has a known value in it (not ? or .), otherwise -1.
+  private static int cifValue(final String row, final int[] bounds, int count, int column) {
+    if (column < 0 || column >= count) {
+      return -1;
+    }
+    final int start = bounds[column * 2];
+    if (bounds[column * 2 + 1] - start == 1
+        && (row.charAt(start) == '?' || row.charAt(start) == '.')) {
+      return -1;
+    }
+    return column;
+  }
+
+  // First of the columns with a known value, -1 if neither has one.
+  private static int cifValue(final String row, final int[] bounds, int count, int column,
+      int fallback) {
+    final int value = cifValue(row, bounds, count, column);
+    return (value >= 0) ? value : cifValue(row, bounds, count, fallback);
+  }
+
+  // Value of the column, "" for -1.
+  private static String cifString(final String row, final int[] bounds, int column) {
+    return (column < 0) ? "" : row.substring(bounds[column * 2], bounds[column * 2 + 1]);
+  }
+
+  // Same as cifString(row, bounds, column).equals(value), without creating the string.
+  private static boolean cifEquals(final String row, final int[] bounds, int column,
+      final String value) {
+    if (column < 0) {
+      return value.isEmpty();
+    }
+    final int start = bounds[column * 2];
+    return bounds[column * 2 + 1] - start == value.length()
+        && row.regionMatches(start, value, 0, value.length());
+  }
+
+  private static double cifDecimal(final String row, final int[] bounds, int count, int column) {
+    if (column < 0 || column >= count) {
+      throw new NumberFormatException("Missing coordinate: " + row);
+    }
+    return parseDecimal(row, bounds[column * 2], bounds[column * 2 + 1]);
+  }
+
+  // Coarse-grained nucleotides of a single (already filtered) model.
+  private ArrayList<Nucleotide> modelToCoarseGrained(
+      final PdbModel model, final boolean allowIncomplete) {
+    final ArrayList<Nucleotide> result = new ArrayList<Nucleotide>();
+    double bsgcCounter = 0;
+    double rbgcCounter = 0;
+    double restCounter = 0;
+    Coordinates bsgcAtom = new Coordinates();
+    Coordinates rbgcAtom = new Coordinates();
+    Coordinates restAtom = new Coordinates();
+
+    String currentResidueName = null;
+    String currentAtomKey = null;
+    String currentChain = null;
+    String currentResidueNumber = null;
+
+    for (final PdbAtomLine atom : model.atoms()) {
+      final String atomName = atom.atomName();
+      final String key = (StringUtils.isEmpty(atom.insertionCode()))
+          ? new StringBuilder(atom.chainIdentifier()).append(atom.residueNumber()).toString()
+          : new StringBuilder(atom.chainIdentifier())
+                .append(atom.residueNumber())
+                .append(atom.insertionCode())
+                .toString();
+      final String chain = new StringBuilder(atom.chainIdentifier()).toString();
+      final String residueNumber = (StringUtils.isEmpty(atom.insertionCode()))
+          ? String.valueOf(atom.residueNumber())
+          : new StringBuilder(String.valueOf(atom.residueNumber()))
+                .append(atom.insertionCode())
+                .toString();
+
+      final String residueName = getOneLetterCode(atom.residueName());
+      if (residueName.isBlank()) {
+        LOGGER.warn(
+            String.format("Found incompatible atom residue name: %s", atom.residueName()));
+        continue;
+      }
+      if (StringUtils.isBlank(currentAtomKey)) {
+        currentAtomKey = key;
+      }
+      if (StringUtils.isBlank(currentResidueName)) {
+        currentResidueName = residueName;
+      }
+      if (StringUtils.isBlank(currentChain)) {
+        currentChain = chain;
+      }
+      if (StringUtils.isBlank(currentResidueNumber)) {
+        currentResidueNumber = residueNumber;
+      }
+
+      if (!StringUtils.equals(currentAtomKey, key)) {
+        if (bsgcCounter > 0) {
           bsgcAtom.x = bsgcAtom.x / bsgcCounter;
           bsgcAtom.y = bsgcAtom.y / bsgcCounter;
           bsgcAtom.z = bsgcAtom.z / bsgcCounter;
         }
-        if (rbgcCounter >= 1.) {
+        if (rbgcCounter > 0) {
           rbgcAtom.x = rbgcAtom.x / rbgcCounter;
           rbgcAtom.y = rbgcAtom.y / rbgcCounter;
           rbgcAtom.z = rbgcAtom.z / rbgcCounter;
         }
-        if (restCounter >= 1.) {
+        if (restCounter > 0) {
           restAtom.x = restAtom.x / restCounter;
           restAtom.y = restAtom.y / restCounter;
           restAtom.z = restAtom.z / restCounter;
         }
 //            if ((restCounter == rest_atoms.size()) && (rbgcCounter == ryboze_atoms.size())
 //                && (bsgcCounter == getBaseAtomsCount(currentResidueName))) {
+//          Allow incomplete but must be at least one from each
         if ((restCounter >= 1) && (rbgcCounter >= 1)
-             && (bsgcCounter >= 1 )) {
-          final ArrayList<Coordinates> grained =
+            && (bsgcCounter >= 1 )) {
+          ArrayList<Coordinates> grained =
               new ArrayList<Coordinates>(Arrays.asList(bsgcAtom, rbgcAtom, restAtom));
           result.add(new Nucleotide(grained, currentResidueName, currentAtomKey, currentChain, currentResidueNumber));
         } else {
@@ -281,25 +857,95 @@ public class StructureParser {
             LOGGER.warn(String.format("Incomplete residue %s.", currentAtomKey));
           }
         }
-      //} // for
-      // Only if no exception was thrown
-      // It is possible that auto detect did not work properly.
-      // We can try and run the parser again with different parse type.
-      if (result.size() == 0 && inputType == "auto") {
-        LOGGER.warn(
-            "Parsed structure without any atoms to analyze. Trying another type pdb/cif instead.");
-        return (isPdb) ? StructureToCoarseGrained(filename, "cif", allowIncomplete)
-                       : StructureToCoarseGrained(filename, "pdb", allowIncomplete);
+        // Reset
+        currentAtomKey = key;
+        currentResidueName = residueName;
+        currentChain = chain;
+        currentResidueNumber = residueNumber;
+        bsgcAtom = new Coordinates();
+        rbgcAtom = new Coordinates();
+        restAtom = new Coordinates();
+        bsgcCounter = 0;
+        rbgcCounter = 0;
+        restCounter = 0;
+      }
+
+      for (String name : rest_atoms) {
+        if (name.equals(atomName)) {
+          restAtom.x = restAtom.x + atom.x();
+          restAtom.y = restAtom.y + atom.y();
+          restAtom.z = restAtom.z + atom.z();
+          restCounter++;
+          break;
+        }
+      }
+      for (String name : ryboze_atoms) {
+        if (name.equals(atomName)) {
+          rbgcAtom.x = rbgcAtom.x + atom.x();
+          rbgcAtom.y = rbgcAtom.y + atom.y();
+          rbgcAtom.z = rbgcAtom.z + atom.z();
+          rbgcCounter++;
+          break;
+        }
+      }
+
+      final ArrayList<String> base_atoms;
+      if (residueName.equals("U")) {
+        base_atoms = U_atoms;
+      } else if (residueName.equals("C")) {
+        base_atoms = C_atoms;
+      } else if (residueName.equals("A")) {
+        base_atoms = A_atoms;
+      } else { // G
+        base_atoms = G_atoms;
+      }
+
+      for (String name : base_atoms) {
+        if (name.equals(atomName)) {
+          bsgcAtom.x = bsgcAtom.x + atom.x();
+          bsgcAtom.y = bsgcAtom.y + atom.y();
+          bsgcAtom.z = bsgcAtom.z + atom.z();
+          bsgcCounter++;
+          break;
+        }
       }
-    } catch (IOException|IllegalArgumentException e) {
-      e.printStackTrace();
     }
 
-    if (result.size() == 0) {
+    // Average and add last residue.
+    if (bsgcCounter >= 1.) {
+      bsgcAtom.x = bsgcAtom.x / bsgcCounter;
+      bsgcAtom.y = bsgcAtom.y / bsgcCounter;
+      bsgcAtom.z = bsgcAtom.z / bsgcCounter;
+    }
+    if (rbgcCounter >= 1.) {
+      rbgcAtom.x = rbgcAtom.x / rbgcCounter;
+      rbgcAtom.y = rbgcAtom.y / rbgcCounter;
+      rbgcAtom.z = rbgcAtom.z / rbgcCounter;
+    }
+    if (restCounter >= 1.) {
+      restAtom.x = restAtom.x / restCounter;
+      restAtom.y = restAtom.y / restCounter;
+      restAtom.z = restAtom.z / restCounter;
+    }
+//            if ((restCounter == rest_atoms.size()) && (rbgcCounter == ryboze_atoms.size())
+//                && (bsgcCounter == getBaseAtomsCount(currentResidueName))) {
+    if ((restCounter >= 1) && (rbgcCounter >= 1)
+         && (bsgcCounter >= 1 )) {
+      final ArrayList<Coordinates> grained =
+          new ArrayList<Coordinates>(Arrays.asList(bsgcAtom, rbgcAtom, restAtom));
+      result.add(new Nucleotide(grained, currentResidueName, currentAtomKey, currentChain, currentResidueNumber));
+    } else {
+      if (allowIncomplete && bsgcCounter >= 1. && rbgcCounter >= 1. && restCounter >= 1.) {
+        final ArrayList<Coordinates> grained =
+            new ArrayList<Coordinates>(Arrays.asList(bsgcAtom, rbgcAtom, restAtom));
+        result.add(new Nucleotide(grained, currentResidueName, currentAtomKey, currentChain, currentResidueNumber));
+        LOGGER.warn(String.format("%s %s.", restCounter, rest_atoms.size()));
+        LOGGER.warn(String.format("%s %s.", rbgcCounter, ryboze_atoms.size()));
         LOGGER.warn(
-            "Parsed structure without any atoms to analyze.");
+            String.format("%s %s.", bsgcCounter, getBaseAtomsCount(currentResidueName)));
+        LOGGER.warn(String.format("Incomplete residue %s.", currentAtomKey));
+      }
     }
-
     return result;
   }
 
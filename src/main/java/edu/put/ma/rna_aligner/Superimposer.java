@@ -5,56 +5,155 @@ import org.biojava.nbio.structure.jama.Matrix;
 import org.biojava.nbio.structure.jama.SingularValueDecomposition;
 
 // Rewritten SVDSuperimposer class from BioJava using just 'Coordinates' instead of 'Atom' structure
-// Also inputs ArrayList instead of Array.
+// Also inputs ArrayList or primitive CoordinatesBlock instead of Array.
+//
+// The optimal rotation can be found either with SVD of the correlation matrix (original BioJava
+// approach) or with the quaternion characteristic polynomial (QCP, Theobald 2005) that works on
+// the same 3x3 correlation matrix without any Matrix allocation. QCP is the default, SVD can be
+// selected at runtime to cross-check the results.
 public class Superimposer {
+  public enum Engine { SVD, QCP }
+
+  private static volatile Engine engine = Engine.QCP;
+
+  // Newton-Raphson precision of the largest QCP eigenvalue.
+  private static final double EIGENVALUE_PRECISION = 1e-11;
+  private static final int MAX_NEWTON_ITERATIONS = 50;
+  // Relative rounding error of the characteristic polynomial, it is zero below it.
+  private static final double POLYNOMIAL_PRECISION = 1e-15;
+  // Squared norm of the adjugate rows, relative to eigenvalue^6, below which QCP falls back to SVD.
+  private static final double QCP_DEGENERATE_NORM = 1e-20;
+
   Matrix rot;
   Matrix tran;
 
   Coordinates translation;
   Coordinates centroidA;
   Coordinates centroidB;
+  // Key matrix of the last QCP fit, reused by 'fit'.
+  private double[] key;
 
   public Superimposer(
       final ArrayList<Coordinates> atomSet1, final ArrayList<Coordinates> atomSet2) {
-    centroidA = Coordinates.getCentroid(atomSet1);
-    centroidB = Coordinates.getCentroid(atomSet2);
+    this(CoordinatesBlock.fromList(atomSet1), CoordinatesBlock.fromList(atomSet2));
+  }
+
+  public Superimposer(final CoordinatesBlock atomSet1, final CoordinatesBlock atomSet2) {
+    centroidA = atomSet1.getCentroid();
+    centroidB = atomSet2.getCentroid();
+
+    // Correlation matrix of both sets centered at their centroids (b_trans * a).
+    final double[] correlation = new double[9];
+    final double innerProducts = CenteredCorrelation(atomSet1, centroidA.x, centroidA.y,
+        centroidA.z, atomSet2, centroidB.x, centroidB.y, centroidB.z, correlation);
+
+    if (engine == Engine.QCP) {
+      calculateQcp(correlation, innerProducts);
+    } else {
+      calculate(CorrelationMatrix(correlation));
+    }
+  }
+
+  // Identity superposition. Used as a reusable buffer for 'fit'.
+  public Superimposer() {
+    rot = Matrix.identity(3, 3);
+    translation = new Coordinates();
+    centroidA = new Coordinates();
+    centroidB = new Coordinates();
+  }
+
+  public Superimposer(final Superimposer rhs) {
+    rot = rhs.rot.copy();
+    translation = new Coordinates(rhs.translation);
+    centroidA = new Coordinates(rhs.centroidA);
+    centroidB = new Coordinates(rhs.centroidB);
+  }
 
-    // center at centroid
-    Matrix centereda = CenteredCoordsMatrix(atomSet1, centroidA);
-    Matrix centeredb = CenteredCoordsMatrixTransposed(atomSet2, centroidB);
+  // Superposition from already accumulated data: centered correlation matrix (b_trans * a), sum
+  // of squared norms of both centered sets and their centroids. See 'RmsdAccumulator'.
+  public Superimposer(final double[] correlation, final double innerProducts,
+      final Coordinates _centroidA, final Coordinates _centroidB) {
+    centroidA = _centroidA;
+    centroidB = _centroidB;
 
-    calculate(centereda, centeredb);
+    if (engine == Engine.QCP) {
+      calculateQcp(correlation, innerProducts);
+    } else {
+      calculate(CorrelationMatrix(correlation));
+    }
   }
 
-  private final Matrix CenteredCoordsMatrix(
-      final ArrayList<Coordinates> atomSet, final Coordinates centroid) {
-    Coordinates shiftVector = Coordinates.getCenterVector(atomSet, centroid);
-    Matrix centered = new Matrix(atomSet.size(), 3);
+  // Recalculates this superposition for new sets in place. With the QCP engine nothing is
+  // allocated, 'workspace' (at least 9 elements) is used for the correlation matrix.
+  public final void fit(final CoordinatesBlock atomSet1, final CoordinatesBlock atomSet2,
+      double[] workspace) {
+    atomSet1.getCentroid(centroidA, 0, atomSet1.size);
+    atomSet2.getCentroid(centroidB, 0, atomSet2.size);
+    final double innerProducts = CenteredCorrelation(atomSet1, centroidA.x, centroidA.y,
+        centroidA.z, atomSet2, centroidB.x, centroidB.y, centroidB.z, workspace);
 
-    for (int i = 0; i < atomSet.size(); ++i) {
-      centered.set(i, 0, atomSet.get(i).x + shiftVector.x);
-      centered.set(i, 1, atomSet.get(i).y + shiftVector.y);
-      centered.set(i, 2, atomSet.get(i).z + shiftVector.z);
+    if (engine == Engine.QCP) {
+      calculateQcp(workspace, innerProducts);
+    } else {
+      calculate(CorrelationMatrix(workspace));
     }
-    return centered;
   }
 
-  private final Matrix CenteredCoordsMatrixTransposed(
-      final ArrayList<Coordinates> atomSet, final Coordinates centroid) {
-    Coordinates shiftVector = Coordinates.getCenterVector(atomSet, centroid);
-    Matrix centered = new Matrix(3, atomSet.size());
+  public static void setEngine(final Engine _engine) {
+    engine = _engine;
+  }
+
+  public static Engine getEngine() {
+    return engine;
+  }
 
-    for (int i = 0; i < atomSet.size(); ++i) {
-      centered.set(0, i, atomSet.get(i).x + shiftVector.x);
-      centered.set(1, i, atomSet.get(i).y + shiftVector.y);
-      centered.set(2, i, atomSet.get(i).z + shiftVector.z);
+  // Fills row-major correlation[3 * i + j] = sum((b_i - cb_i) * (a_j - ca_j)).
+  // Returns the sum of squared norms of both centered sets.
+  private static double CenteredCorrelation(final CoordinatesBlock atomSet1, double cax,
+      double cay, double caz, final CoordinatesBlock atomSet2, double cbx, double cby, double cbz,
+      double[] correlation) {
+    final double[] a = atomSet1.data;
+    final double[] b = atomSet2.data;
+    double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+    double innerProducts = 0;
+
+    for (int i = 0; i < atomSet1.size * 3; i += 3) {
+      final double ax = a[i] - cax;
+      final double ay = a[i + 1] - cay;
+      final double az = a[i + 2] - caz;
+      final double bx = b[i] - cbx;
+      final double by = b[i + 1] - cby;
+      final double bz = b[i + 2] - cbz;
+      innerProducts += ax * ax + ay * ay + az * az + bx * bx + by * by + bz * bz;
+      sxx += bx * ax;
+      sxy += bx * ay;
+      sxz += bx * az;
+      syx += by * ax;
+      syy += by * ay;
+      syz += by * az;
+      szx += bz * ax;
+      szy += bz * ay;
+      szz += bz * az;
     }
-    return centered;
+    correlation[0] = sxx;
+    correlation[1] = sxy;
+    correlation[2] = sxz;
+    correlation[3] = syx;
+    correlation[4] = syy;
+    correlation[5] = syz;
+    correlation[6] = szx;
+    correlation[7] = szy;
+    correlation[8] = szz;
+    return innerProducts;
   }
 
-  private void calculate(Matrix a, Matrix b_trans) {
-    Matrix corr = b_trans.times(a);
+  private static Matrix CorrelationMatrix(final double[] correlation) {
+    return new Matrix(new double[][] {{correlation[0], correlation[1], correlation[2]},
+        {correlation[3], correlation[4], correlation[5]},
+        {correlation[6], correlation[7], correlation[8]}});
+  }
 
+  private void calculate(Matrix corr) {
     SingularValueDecomposition svd = corr.svd();
 
     Matrix u = svd.getU();
@@ -85,6 +184,221 @@ public class Superimposer {
     translation = centroidA.clone().substract(cb_tmp);
   }
 
+  private void calculateQcp(final double[] correlation, final double innerProducts) {
+    final double eigenvalue = QcpEigenvalue(correlation, innerProducts * 0.5);
+    if (key == null) {
+      key = new double[16];
+    }
+    KeyMatrix(correlation, key);
+
+    // Eigenvector of the largest eigenvalue is the optimal rotation quaternion. It is taken from
+    // the adjugate of (K - eigenvalue * I), which for a simple eigenvalue has rank one. Use the
+    // row with the largest norm to stay away from numerically zero rows.
+    for (int i = 0; i < 16; i += 5) {
+      key[i] -= eigenvalue;
+    }
+    double q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+    // Cofactors are cubic in the key matrix, compare them with the cube of the eigenvalue.
+    final double scale = eigenvalue * eigenvalue * eigenvalue;
+    double bestNorm = Math.max(1e-12, QCP_DEGENERATE_NORM * scale * scale);
+    boolean found = false;
+    for (int row = 0; row < 4; row++) {
+      final double c0 = Cofactor(key, row, 0);
+      final double c1 = Cofactor(key, row, 1);
+      final double c2 = Cofactor(key, row, 2);
+      final double c3 = Cofactor(key, row, 3);
+      final double norm = c0 * c0 + c1 * c1 + c2 * c2 + c3 * c3;
+      if (norm > bestNorm) {
+        bestNorm = norm;
+        found = true;
+        q0 = c0;
+        q1 = c1;
+        q2 = c2;
+        q3 = c3;
+      }
+    }
+    // Every row vanished, the largest eigenvalue is not simple (e.g. collinear atoms) and the
+    // rotation is not defined by the adjugate. SVD handles it.
+    if (!found) {
+      calculate(CorrelationMatrix(correlation));
+      return;
+    }
+    final double norm = Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+    q0 /= norm;
+    q1 /= norm;
+    q2 /= norm;
+    q3 /= norm;
+
+    // Quaternion rotates b onto a (column vectors). Superimposer multiplies row vectors by the
+    // rotation matrix so it is stored transposed. Existing matrix is overwritten when refitting.
+    final double a2 = q0 * q0, x2 = q1 * q1, y2 = q2 * q2, z2 = q3 * q3;
+    final double xy = q1 * q2, az = q0 * q3, zx = q3 * q1, ay = q0 * q2, yz = q2 * q3,
+                 ax = q0 * q1;
+    if (rot == null) {
+      rot = new Matrix(3, 3);
+    }
+    final double[][] m = rot.getArray();
+    m[0][0] = a2 + x2 - y2 - z2;
+    m[0][1] = 2 * (xy + az);
+    m[0][2] = 2 * (zx - ay);
+    m[1][0] = 2 * (xy - az);
+    m[1][1] = a2 - x2 + y2 - z2;
+    m[1][2] = 2 * (yz + ax);
+    m[2][0] = 2 * (zx + ay);
+    m[2][1] = 2 * (yz - ax);
+    m[2][2] = a2 - x2 - y2 + z2;
+
+    if (translation == null) {
+      translation = new Coordinates();
+    }
+    final Coordinates cb = centroidB;
+    translation.x = centroidA.x - (cb.x * m[0][0] + cb.y * m[1][0] + cb.z * m[2][0]);
+    translation.y = centroidA.y - (cb.x * m[0][1] + cb.y * m[1][1] + cb.z * m[2][1]);
+    translation.z = centroidA.z - (cb.x * m[0][2] + cb.y * m[1][2] + cb.z * m[2][2]);
+  }
+
+  // Fills 'key' (16 elements) with the symmetric 4x4 key matrix (Horn) of the correlation matrix,
+  // row-major.
+  private static void KeyMatrix(final double[] s, double[] key) {
+    final double sxx = s[0], sxy = s[1], sxz = s[2];
+    final double syx = s[3], syy = s[4], syz = s[5];
+    final double szx = s[6], szy = s[7], szz = s[8];
+    key[0] = sxx + syy + szz;
+    key[1] = key[4] = syz - szy;
+    key[2] = key[8] = szx - sxz;
+    key[3] = key[12] = sxy - syx;
+    key[5] = sxx - syy - szz;
+    key[6] = key[9] = sxy + syx;
+    key[7] = key[13] = szx + sxz;
+    key[10] = -sxx + syy - szz;
+    key[11] = key[14] = syz + szy;
+    key[15] = -sxx - syy + szz;
+  }
+
+  // Largest eigenvalue of the key matrix found with Newton-Raphson on its characteristic
+  // polynomial x^4 + c2 * x^2 + c1 * x + c0, starting from the upper bound e0. The coefficients
+  // are expanded from the correlation matrix (Theobald), so the key matrix is not needed.
+  private static double QcpEigenvalue(final double[] s, final double e0) {
+    final double sxx = s[0], sxy = s[1], sxz = s[2];
+    final double syx = s[3], syy = s[4], syz = s[5];
+    final double szx = s[6], szy = s[7], szz = s[8];
+
+    final double c2 = -2.0 * (sxx * sxx + sxy * sxy + sxz * sxz + syx * syx + syy * syy
+        + syz * syz + szx * szx + szy * szy + szz * szz);
+    final double c1 = -8.0 * (sxx * (syy * szz - syz * szy) - sxy * (syx * szz - syz * szx)
+        + sxz * (syx * szy - syy * szx));
+
+    // Determinant of the key matrix.
+    final double sxx2 = sxx * sxx, syy2 = syy * syy, szz2 = szz * szz;
+    final double sxy2 = sxy * sxy, syz2 = syz * syz, sxz2 = sxz * sxz;
+    final double syx2 = syx * syx, szy2 = szy * szy, szx2 = szx * szx;
+    final double syzSzyMinusSyySzz2 = 2.0 * (syz * szy - syy * szz);
+    final double sxx2Syy2Szz2Syz2Szy2 = syy2 + szz2 - sxx2 + syz2 + szy2;
+    final double sxy2Sxz2Syx2Szx2 = sxy2 + sxz2 - syx2 - szx2;
+    final double sxzpSzx = sxz + szx, syzpSzy = syz + szy, sxypSyx = sxy + syx;
+    final double syzmSzy = syz - szy, sxzmSzx = sxz - szx, sxymSyx = sxy - syx;
+    final double sxxpSyy = sxx + syy, sxxmSyy = sxx - syy;
+    final double c0 = sxy2Sxz2Syx2Szx2 * sxy2Sxz2Syx2Szx2
+        + (sxx2Syy2Szz2Syz2Szy2 + syzSzyMinusSyySzz2) * (sxx2Syy2Szz2Syz2Szy2 - syzSzyMinusSyySzz2)
+        + (-sxzpSzx * syzmSzy + sxymSyx * (sxxmSyy - szz))
+            * (-sxzmSzx * syzpSzy + sxymSyx * (sxxmSyy + szz))
+        + (-sxzpSzx * syzpSzy - sxypSyx * (sxxpSyy - szz))
+            * (-sxzmSzx * syzmSzy - sxypSyx * (sxxpSyy + szz))
+        + (sxypSyx * syzpSzy + sxzpSzx * (sxxmSyy + szz))
+            * (-sxymSyx * syzmSzy + sxzpSzx * (sxxpSyy + szz))
+        + (sxypSyx * syzmSzy + sxzmSzx * (sxxmSyy - szz))
+            * (-sxymSyx * syzpSzy + sxzmSzx * (sxxpSyy - szz));
+
+    double eigenvalue = e0;
+    for (int i = 0; i < MAX_NEWTON_ITERATIONS; i++) {
+      final double x2 = eigenvalue * eigenvalue;
+      final double b = (x2 + c2) * eigenvalue;
+      final double a = b + c1;
+      final double value = a * eigenvalue + c0;
+      // Zero within the rounding error of the polynomial. Near a multiple root (e.g. collinear
+      // atoms) the derivative vanishes too and the Newton step would be noise.
+      if (Math.abs(value) <= POLYNOMIAL_PRECISION
+          * (x2 * x2 + Math.abs(c2) * x2 + Math.abs(c1 * eigenvalue) + Math.abs(c0))) {
+        break;
+      }
+      final double derivative = 2.0 * x2 * eigenvalue + b + a;
+      if (derivative == 0) {
+        break;
+      }
+      final double next = eigenvalue - value / derivative;
+      // Above the largest root the polynomial is increasing and convex, so the iterations only
+      // decrease and stay non-negative (the key matrix is traceless).
+      if (!(next >= 0 && next <= eigenvalue)) {
+        break;
+      }
+      final boolean converged = Math.abs(next - eigenvalue) < Math.abs(EIGENVALUE_PRECISION * next);
+      eigenvalue = next;
+      if (converged) {
+        break;
+      }
+    }
+    return eigenvalue;
+  }
+
+  // Minimal RMSD of two sets after optimal superposition. Only the RMSD is computed, no rotation
+  // or translation is created. Use when most candidates are rejected based on the RMSD alone.
+  public static double getMinimalRMS(
+      final CoordinatesBlock atomSet1, final CoordinatesBlock atomSet2) {
+    return getMinimalRMS(atomSet1, atomSet2, new double[9]);
+  }
+
+  // Same as above, 'workspace' (at least 9 elements) is used for the correlation matrix.
+  public static double getMinimalRMS(final CoordinatesBlock atomSet1,
+      final CoordinatesBlock atomSet2, double[] workspace) {
+    final double[] a = atomSet1.data;
+    final double[] b = atomSet2.data;
+    double cax = 0, cay = 0, caz = 0, cbx = 0, cby = 0, cbz = 0;
+    for (int i = 0; i < atomSet1.size * 3; i += 3) {
+      cax += a[i];
+      cay += a[i + 1];
+      caz += a[i + 2];
+      cbx += b[i];
+      cby += b[i + 1];
+      cbz += b[i + 2];
+    }
+    final int size = atomSet1.size;
+    final double innerProducts = CenteredCorrelation(atomSet1, cax / size, cay / size, caz / size,
+        atomSet2, cbx / size, cby / size, cbz / size, workspace);
+    return getMinimalRMS(workspace, innerProducts, size);
+  }
+
+  // Minimal RMSD from the centered correlation matrix (row-major, b_trans * a), the sum of squared
+  // norms of both centered sets and the number of atoms.
+  public static double getMinimalRMS(
+      final double[] correlation, final double innerProducts, final int size) {
+    final double eigenvalueSum;
+    if (engine == Engine.QCP) {
+      eigenvalueSum = QcpEigenvalue(correlation, innerProducts * 0.5);
+    } else {
+      // Sum of singular values, the smallest one changes sign for reflections.
+      final Matrix corr = CorrelationMatrix(correlation);
+      final double[] singular = corr.svd().getSingularValues();
+      eigenvalueSum = singular[0] + singular[1]
+          + ((corr.det() < 0) ? -singular[2] : singular[2]);
+    }
+    return Math.sqrt(Math.abs(innerProducts - 2.0 * eigenvalueSum) / size);
+  }
+
+  // Signed cofactor of a row-major 4x4 matrix.
+  private static double Cofactor(final double[] m, int row, int col) {
+    final int r0 = (row == 0) ? 1 : 0;
+    final int r1 = (row <= 1) ? 2 : 1;
+    final int r2 = (row <= 2) ? 3 : 2;
+    final int k0 = (col == 0) ? 1 : 0;
+    final int k1 = (col <= 1) ? 2 : 1;
+    final int k2 = (col <= 2) ? 3 : 2;
+    final double minor =
+        m[r0 * 4 + k0] * (m[r1 * 4 + k1] * m[r2 * 4 + k2] - m[r1 * 4 + k2] * m[r2 * 4 + k1])
+        - m[r0 * 4 + k1] * (m[r1 * 4 + k0] * m[r2 * 4 + k2] - m[r1 * 4 + k2] * m[r2 * 4 + k0])
+        + m[r0 * 4 + k2] * (m[r1 * 4 + k0] * m[r2 * 4 + k1] - m[r1 * 4 + k1] * m[r2 * 4 + k0]);
+    return (((row + col) & 1) == 0) ? minor : -minor;
+  }
+
   public final Matrix getRotation() {
     return rot;
   }
@@ -104,4 +418,15 @@ public class Superimposer {
     double avd = (sum / atomSet1.size());
     return Math.sqrt(avd);
   }
+
+  public static double getRMS(final CoordinatesBlock atomSet1, final CoordinatesBlock atomSet2) {
+    final double[] a = atomSet1.data;
+    final double[] b = atomSet2.data;
+    double sum = 0.0;
+    for (int i = 0; i < atomSet1.size * 3; i++) {
+      final double d = a[i] - b[i];
+      sum += d * d;
+    }
+    return Math.sqrt(sum / atomSet1.size);
+  }
 }
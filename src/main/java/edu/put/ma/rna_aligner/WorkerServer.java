@@ -0,0 +1,94 @@
+package edu.put.ma.rna_aligner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Long-running alignment server, also the worker side of the distributed mode. Accepts
+// connections (e.g. from a Coordinator), reads one AlignmentJob line, calculates it with all local
+// threads and answers with a single result line. Jobs are calculated one at a time. Parsed
+// structures are kept in a StructureCache, so repeated files are not read again.
+public class WorkerServer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorkerServer.class);
+  // Jobs are served one at a time, a client that does not send its job line within this time
+  // (in milliseconds) is dropped so it cannot block the worker.
+  private static final int JOB_READ_TIMEOUT = 5000;
+
+  private final AlignerConfig config;
+  private final InetSocketAddress address;
+  private final StructureCache cache;
+
+  WorkerServer(final AlignerConfig _config, final InetSocketAddress _address,
+      final StructureCache _cache) {
+    super();
+    config = _config;
+    address = _address;
+    cache = _cache;
+  }
+
+  // Serves jobs until the process is stopped.
+  public void serve() throws IOException {
+    final ForkJoinPool threadPool = new ForkJoinPool(config.threads);
+    try (ServerSocket server = new ServerSocket()) {
+      server.bind(address);
+      LOGGER.info("Worker listening on {}", server.getLocalSocketAddress());
+      while (true) {
+        try (Socket socket = server.accept()) {
+          handle(socket, threadPool);
+        } catch (IOException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    } finally {
+      threadPool.shutdown();
+    }
+  }
+
+  private void handle(final Socket socket, final ForkJoinPool threadPool) throws IOException {
+    final BufferedReader reader = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    socket.setSoTimeout(JOB_READ_TIMEOUT);
+    final String line;
+    try {
+      line = reader.readLine();
+    } catch (SocketTimeoutException e) {
+      LOGGER.warn("No job received from {} within {} ms, closing the connection",
+          socket.getRemoteSocketAddress(), JOB_READ_TIMEOUT);
+      return;
+    }
+    if (line == null) {
+      return;
+    }
+    String response;
+    try {
+      final AlignmentJob job = AlignmentJob.fromLine(line, copyConfig());
+      LOGGER.info("Aligning {} and {} (shard {} of {})", job.reference, job.model,
+          job.config.shardIndex, job.config.shardCount);
+      response = AlignmentJob.resultToLine(job.calculate(cache, threadPool));
+    } catch (RuntimeException e) {
+      LOGGER.error(e.getMessage(), e);
+      response = AlignmentJob.errorToLine(e.getMessage());
+    }
+    writer.write(response);
+    writer.write('\n');
+    writer.flush();
+  }
+
+  // Every job starts from the worker settings, options of the previous jobs are not kept.
+  private AlignerConfig copyConfig() {
+    final AlignerConfig copy = new AlignerConfig();
+    copy.threads = config.threads;
+    return copy;
+  }
+}